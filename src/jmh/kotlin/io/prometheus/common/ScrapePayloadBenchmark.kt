@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.prometheus.common
+
+import com.google.protobuf.ByteString
+import io.prometheus.common.GrpcObjects.newScrapeResponseChunk
+import io.prometheus.grpc.krotodc.ChunkedScrapeResponse
+import io.prometheus.grpc.krotodc.ChunkedScrapeResponse.ChunkOneOf.Chunk
+import io.prometheus.grpc.krotodc.ChunkData
+import io.prometheus.grpc.krotodc.chunkedscraperesponse.toProto
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.io.ByteArrayOutputStream
+import java.util.zip.CRC32
+import kotlin.random.Random
+
+// Carries one MB of gzipped scrape content from the agent's chunk buffer to the proxy's response content,
+// comparing the copying construction that was replaced with the wrapped buffers and rope used now.
+// The gc profiler's gc.alloc.rate.norm is the bytes allocated per op, i.e., per MB scraped.
+// Run with: ./gradlew jmh
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+open class ScrapePayloadBenchmark {
+  @Param("32768", "131072")
+  var chunkSize: Int = 0
+
+  private val content = Random(0).nextBytes(1024 * 1024)
+  private val checksum = CRC32()
+  private lateinit var readBuffer: ByteArray
+
+  @Setup
+  fun setup() {
+    readBuffer = ByteArray(chunkSize)
+  }
+
+  // The agent copied each full read buffer into a chunk, and the proxy copied each chunk out to an array,
+  // into a ByteArrayOutputStream, and then into the content array and a ByteString for the response
+  @Benchmark
+  fun copiedPayload(bh: Blackhole) {
+    val baos = ByteArrayOutputStream()
+    var offset = 0
+    var chunkCount = 0
+    while (offset < content.size) {
+      val length = minOf(chunkSize, content.size - offset)
+      System.arraycopy(content, offset, readBuffer, 0, length)
+      val chunk =
+        ChunkedScrapeResponse(
+          Chunk(
+            ChunkData(
+              chunkScrapeId = 1L,
+              chunkCount = ++chunkCount,
+              chunkByteCount = length,
+              chunkChecksum = checksum.value,
+              chunkBytes = ByteString.copyFrom(readBuffer),
+            )
+          )
+        ).toProto()
+      baos.write(chunk.chunk.chunkBytes.toByteArray(), 0, length)
+      offset += length
+    }
+    bh.consume(ByteString.copyFrom(baos.toByteArray()))
+  }
+
+  // The agent takes each chunk from its gzip buffer as an owned array and wraps it, and the proxy
+  // concatenates the received ByteStrings into a rope that is written out without flattening
+  @Benchmark
+  fun sharedPayload(bh: Blackhole) {
+    var rope = ByteString.EMPTY
+    var offset = 0
+    var chunkCount = 0
+    while (offset < content.size) {
+      val length = minOf(chunkSize, content.size - offset)
+      val owned = content.copyOfRange(offset, offset + length)
+      val chunk = newScrapeResponseChunk(1L, ++chunkCount, length, checksum, owned).toProto()
+      rope = rope.concat(chunk.chunk.chunkBytes)
+      offset += length
+    }
+    rope.asReadOnlyByteBufferList().forEach { bh.consume(it) }
+  }
+}
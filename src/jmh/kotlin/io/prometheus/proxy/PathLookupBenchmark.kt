@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.prometheus.proxy
+
+import io.prometheus.grpc.RegisterAgentRequest
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Group
+import org.openjdk.jmh.annotations.GroupThreads
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+// Measures path lookups by http handlers while agents register and unregister paths.
+// Run with: ./gradlew jmh
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class PathLookupBenchmark {
+  @Param("100", "1000", "10000")
+  var pathCount: Int = 0
+
+  private lateinit var manager: ProxyPathManager
+  private lateinit var paths: List<String>
+  private val readIndex = AtomicInteger()
+  private val writeIndex = AtomicInteger()
+
+  @Setup(Level.Iteration)
+  fun setup() {
+    manager = ProxyPathManager(AgentContextManager(true), true)
+    paths = List(pathCount) { "path-$it" }
+    paths.forEach { manager.addPath(it, consolidatedAgent()) }
+  }
+
+  @Benchmark
+  @Group("churn")
+  @GroupThreads(6)
+  fun lookup(bh: Blackhole) {
+    val info = manager.getAgentContextInfo(paths[readIndex.getAndIncrement().mod(pathCount)])
+    bh.consume(info?.agentContexts?.size)
+  }
+
+  @Benchmark
+  @Group("churn")
+  @GroupThreads(2)
+  fun registration() {
+    val path = paths[writeIndex.getAndIncrement().mod(pathCount)]
+    val agent = consolidatedAgent()
+    manager.addPath(path, agent)
+    manager.removePath(path, agent.agentId)
+  }
+
+  private fun consolidatedAgent() =
+    AgentContext("bench").apply { assignProperties(RegisterAgentRequest.newBuilder().setConsolidated(true).build()) }
+}
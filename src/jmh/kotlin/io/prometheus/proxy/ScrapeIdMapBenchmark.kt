@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.prometheus.proxy
+
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Threads
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+// Compares the scrape id maps under the proxy's churn pattern: each op adds the next scrape id,
+// looks it up as a result would, and removes the id that is `liveScrapes` behind it.
+// Run with: ./gradlew jmh
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+open class ScrapeIdMapBenchmark {
+  @Param("10000", "100000", "1000000")
+  var liveScrapes: Int = 0
+
+  private val value = Any()
+  private val idGenerator = AtomicLong()
+  private lateinit var longMap: ConcurrentLongMap<Any>
+  private lateinit var boxedMap: ConcurrentHashMap<Long, Any>
+
+  @Setup(Level.Iteration)
+  fun setup() {
+    longMap = ConcurrentLongMap()
+    boxedMap = ConcurrentHashMap()
+    idGenerator.set(liveScrapes.toLong())
+    for (id in 0L until liveScrapes) {
+      longMap[id] = value
+      boxedMap[id] = value
+    }
+  }
+
+  @Benchmark
+  fun concurrentLongMap(bh: Blackhole) {
+    val id = idGenerator.getAndIncrement()
+    longMap[id] = value
+    bh.consume(longMap[id])
+    bh.consume(longMap.remove(id - liveScrapes))
+  }
+
+  @Benchmark
+  fun concurrentHashMap(bh: Blackhole) {
+    val id = idGenerator.getAndIncrement()
+    boxedMap[id] = value
+    bh.consume(boxedMap[id])
+    bh.consume(boxedMap.remove(id - liveScrapes))
+  }
+}
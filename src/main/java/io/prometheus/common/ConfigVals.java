@@ -42,6 +42,8 @@ public class ConfigVals {
     public final java.lang.String name;
     public final java.util.List<Agent.PathConfigs$Elm> pathConfigs;
     public final Agent.Proxy proxy;
+    public final int scrapeMaxConcurrency;
+    public final int scrapeMaxConcurrencyPerHost;
     public final int scrapeMaxRetries;
     public final int scrapeTimeoutSecs;
     public final Agent.Tls tls;
@@ -58,6 +60,8 @@ public class ConfigVals {
       this.name = c.hasPathOrNull("name") ? c.getString("name") : "";
       this.pathConfigs = $_LAgent_PathConfigs$Elm(c.getList("pathConfigs"), parentPath, $tsCfgValidator);
       this.proxy = c.hasPathOrNull("proxy") ? new Agent.Proxy(c.getConfig("proxy"), parentPath + "proxy.", $tsCfgValidator) : new Agent.Proxy(com.typesafe.config.ConfigFactory.parseString("proxy{}"), parentPath + "proxy.", $tsCfgValidator);
+      this.scrapeMaxConcurrency = c.hasPathOrNull("scrapeMaxConcurrency") ? c.getInt("scrapeMaxConcurrency") : 16;
+      this.scrapeMaxConcurrencyPerHost = c.hasPathOrNull("scrapeMaxConcurrencyPerHost") ? c.getInt("scrapeMaxConcurrencyPerHost") : 4;
       this.scrapeMaxRetries = c.hasPathOrNull("scrapeMaxRetries") ? c.getInt("scrapeMaxRetries") : 0;
       this.scrapeTimeoutSecs = c.hasPathOrNull("scrapeTimeoutSecs") ? c.getInt("scrapeTimeoutSecs") : 15;
       this.tls = c.hasPathOrNull("tls") ? new Agent.Tls(c.getConfig("tls"), parentPath + "tls.", $tsCfgValidator) : new Agent.Tls(com.typesafe.config.ConfigFactory.parseString("tls{}"), parentPath + "tls.", $tsCfgValidator);
@@ -101,21 +105,39 @@ public class ConfigVals {
     }
 
     public static class Internal {
+      public final boolean batchedStreamsEnabled;
+      public final int chunkChannelCapacity;
+      public final int chunkedStreamCount;
       public final int cioTimeoutSecs;
       public final int heartbeatCheckPauseMillis;
       public final boolean heartbeatEnabled;
       public final int heartbeatMaxInactivitySecs;
+      public final java.lang.String heartbeatMode;
+      public final int nonChunkedChannelCapacity;
       public final int reconnectPauseSecs;
+      public final int responseBatchLingerMillis;
+      public final int responseBatchMaxBytes;
       public final int scrapeRequestBacklogUnhealthySize;
+      public final int scrapeRequestChannelCapacity;
+      public final int scrapeResultChannelCapacity;
       public final Internal.Zipkin zipkin;
 
       public Internal(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.batchedStreamsEnabled = !c.hasPathOrNull("batchedStreamsEnabled") || c.getBoolean("batchedStreamsEnabled");
+        this.chunkChannelCapacity = c.hasPathOrNull("chunkChannelCapacity") ? c.getInt("chunkChannelCapacity") : 64;
+        this.chunkedStreamCount = c.hasPathOrNull("chunkedStreamCount") ? c.getInt("chunkedStreamCount") : 2;
         this.cioTimeoutSecs = c.hasPathOrNull("cioTimeoutSecs") ? c.getInt("cioTimeoutSecs") : 90;
         this.heartbeatCheckPauseMillis = c.hasPathOrNull("heartbeatCheckPauseMillis") ? c.getInt("heartbeatCheckPauseMillis") : 500;
         this.heartbeatEnabled = !c.hasPathOrNull("heartbeatEnabled") || c.getBoolean("heartbeatEnabled");
         this.heartbeatMaxInactivitySecs = c.hasPathOrNull("heartbeatMaxInactivitySecs") ? c.getInt("heartbeatMaxInactivitySecs") : 5;
+        this.heartbeatMode = c.hasPathOrNull("heartbeatMode") ? c.getString("heartbeatMode") : "rpc";
+        this.nonChunkedChannelCapacity = c.hasPathOrNull("nonChunkedChannelCapacity") ? c.getInt("nonChunkedChannelCapacity") : 64;
         this.reconnectPauseSecs = c.hasPathOrNull("reconnectPauseSecs") ? c.getInt("reconnectPauseSecs") : 3;
+        this.responseBatchLingerMillis = c.hasPathOrNull("responseBatchLingerMillis") ? c.getInt("responseBatchLingerMillis") : 2;
+        this.responseBatchMaxBytes = c.hasPathOrNull("responseBatchMaxBytes") ? c.getInt("responseBatchMaxBytes") : 1048576;
         this.scrapeRequestBacklogUnhealthySize = c.hasPathOrNull("scrapeRequestBacklogUnhealthySize") ? c.getInt("scrapeRequestBacklogUnhealthySize") : 25;
+        this.scrapeRequestChannelCapacity = c.hasPathOrNull("scrapeRequestChannelCapacity") ? c.getInt("scrapeRequestChannelCapacity") : 256;
+        this.scrapeResultChannelCapacity = c.hasPathOrNull("scrapeResultChannelCapacity") ? c.getInt("scrapeResultChannelCapacity") : 64;
         this.zipkin = c.hasPathOrNull("zipkin") ? new Internal.Zipkin(c.getConfig("zipkin"), parentPath + "zipkin.", $tsCfgValidator) : new Internal.Zipkin(com.typesafe.config.ConfigFactory.parseString("zipkin{}"), parentPath + "zipkin.", $tsCfgValidator);
       }
 
@@ -224,7 +246,9 @@ public class ConfigVals {
 
   public static class Proxy2 {
     public final Proxy2.Admin2 admin;
+    public final Proxy2.Admission admission;
     public final Proxy2.Agent2 agent;
+    public final Proxy2.Cache cache;
     public final Proxy2.Http2 http;
     public final Proxy2.Internal2 internal;
     public final Proxy2.Metrics2 metrics;
@@ -234,7 +258,9 @@ public class ConfigVals {
 
     public Proxy2(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
       this.admin = c.hasPathOrNull("admin") ? new Proxy2.Admin2(c.getConfig("admin"), parentPath + "admin.", $tsCfgValidator) : new Proxy2.Admin2(com.typesafe.config.ConfigFactory.parseString("admin{}"), parentPath + "admin.", $tsCfgValidator);
+      this.admission = c.hasPathOrNull("admission") ? new Proxy2.Admission(c.getConfig("admission"), parentPath + "admission.", $tsCfgValidator) : new Proxy2.Admission(com.typesafe.config.ConfigFactory.parseString("admission{}"), parentPath + "admission.", $tsCfgValidator);
       this.agent = c.hasPathOrNull("agent") ? new Proxy2.Agent2(c.getConfig("agent"), parentPath + "agent.", $tsCfgValidator) : new Proxy2.Agent2(com.typesafe.config.ConfigFactory.parseString("agent{}"), parentPath + "agent.", $tsCfgValidator);
+      this.cache = c.hasPathOrNull("cache") ? new Proxy2.Cache(c.getConfig("cache"), parentPath + "cache.", $tsCfgValidator) : new Proxy2.Cache(com.typesafe.config.ConfigFactory.parseString("cache{}"), parentPath + "cache.", $tsCfgValidator);
       this.http = c.hasPathOrNull("http") ? new Proxy2.Http2(c.getConfig("http"), parentPath + "http.", $tsCfgValidator) : new Proxy2.Http2(com.typesafe.config.ConfigFactory.parseString("http{}"), parentPath + "http.", $tsCfgValidator);
       this.internal = c.hasPathOrNull("internal") ? new Proxy2.Internal2(c.getConfig("internal"), parentPath + "internal.", $tsCfgValidator) : new Proxy2.Internal2(com.typesafe.config.ConfigFactory.parseString("internal{}"), parentPath + "internal.", $tsCfgValidator);
       this.metrics = c.hasPathOrNull("metrics") ? new Proxy2.Metrics2(c.getConfig("metrics"), parentPath + "metrics.", $tsCfgValidator) : new Proxy2.Metrics2(com.typesafe.config.ConfigFactory.parseString("metrics{}"), parentPath + "metrics.", $tsCfgValidator);
@@ -265,6 +291,42 @@ public class ConfigVals {
       }
     }
 
+    public static class Admission {
+      public final Admission.Adaptive adaptive;
+      public final boolean enabled;
+      public final int maxAgentBacklogSize;
+      public final int maxBufferedMbs;
+      public final int maxScrapeMapSize;
+      public final int retryAfterSecs;
+
+      public Admission(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.adaptive = c.hasPathOrNull("adaptive") ? new Admission.Adaptive(c.getConfig("adaptive"), parentPath + "adaptive.", $tsCfgValidator) : new Admission.Adaptive(com.typesafe.config.ConfigFactory.parseString("adaptive{}"), parentPath + "adaptive.", $tsCfgValidator);
+        this.enabled = c.hasPathOrNull("enabled") && c.getBoolean("enabled");
+        this.maxAgentBacklogSize = c.hasPathOrNull("maxAgentBacklogSize") ? c.getInt("maxAgentBacklogSize") : 100;
+        this.maxBufferedMbs = c.hasPathOrNull("maxBufferedMbs") ? c.getInt("maxBufferedMbs") : 256;
+        this.maxScrapeMapSize = c.hasPathOrNull("maxScrapeMapSize") ? c.getInt("maxScrapeMapSize") : 1000;
+        this.retryAfterSecs = c.hasPathOrNull("retryAfterSecs") ? c.getInt("retryAfterSecs") : 5;
+      }
+
+      public static class Adaptive {
+        public final double backoffRatio;
+        public final boolean enabled;
+        public final int initialLimit;
+        public final int latencyThresholdMillis;
+        public final int maxLimit;
+        public final int minLimit;
+
+        public Adaptive(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+          this.backoffRatio = c.hasPathOrNull("backoffRatio") ? c.getDouble("backoffRatio") : 0.9;
+          this.enabled = c.hasPathOrNull("enabled") && c.getBoolean("enabled");
+          this.initialLimit = c.hasPathOrNull("initialLimit") ? c.getInt("initialLimit") : 100;
+          this.latencyThresholdMillis = c.hasPathOrNull("latencyThresholdMillis") ? c.getInt("latencyThresholdMillis") : 5000;
+          this.maxLimit = c.hasPathOrNull("maxLimit") ? c.getInt("maxLimit") : 1000;
+          this.minLimit = c.hasPathOrNull("minLimit") ? c.getInt("minLimit") : 10;
+        }
+      }
+    }
+
     public static class Agent2 {
       public final int port;
 
@@ -273,7 +335,65 @@ public class ConfigVals {
       }
     }
 
+    public static class Cache {
+      public final boolean enabled;
+      public final int maxAgeMillis;
+      public final int maxSizeMbs;
+      public final java.util.List<Cache.PathMaxAges$Elm> pathMaxAges;
+      public final int staleIfErrorSecs;
+
+      public Cache(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.enabled = c.hasPathOrNull("enabled") && c.getBoolean("enabled");
+        this.maxAgeMillis = c.hasPathOrNull("maxAgeMillis") ? c.getInt("maxAgeMillis") : 0;
+        this.maxSizeMbs = c.hasPathOrNull("maxSizeMbs") ? c.getInt("maxSizeMbs") : 64;
+        this.pathMaxAges = c.hasPathOrNull("pathMaxAges") ? $_LCache_PathMaxAges$Elm(c.getList("pathMaxAges"), parentPath, $tsCfgValidator) : null;
+        this.staleIfErrorSecs = c.hasPathOrNull("staleIfErrorSecs") ? c.getInt("staleIfErrorSecs") : 0;
+      }
+
+      private static java.util.List<Cache.PathMaxAges$Elm> $_LCache_PathMaxAges$Elm(com.typesafe.config.ConfigList cl, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        java.util.ArrayList<Cache.PathMaxAges$Elm> al = new java.util.ArrayList<>();
+        for (com.typesafe.config.ConfigValue cv : cl) {
+          al.add(new Cache.PathMaxAges$Elm(((com.typesafe.config.ConfigObject) cv).toConfig(), parentPath, $tsCfgValidator));
+        }
+        return java.util.Collections.unmodifiableList(al);
+      }
+
+      public static class PathMaxAges$Elm {
+        public final int maxAgeMillis;
+        public final java.lang.String path;
+
+        public PathMaxAges$Elm(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+          this.maxAgeMillis = $_reqInt(parentPath, c, "maxAgeMillis", $tsCfgValidator);
+          this.path = $_reqStr(parentPath, c, "path", $tsCfgValidator);
+        }
+
+        private static int $_reqInt(java.lang.String parentPath, com.typesafe.config.Config c, java.lang.String path, $TsCfgValidator $tsCfgValidator) {
+          if (c == null) return 0;
+          try {
+            return c.getInt(path);
+          } catch (com.typesafe.config.ConfigException e) {
+            $tsCfgValidator.addBadPath(parentPath + path, e);
+            return 0;
+          }
+        }
+
+        private static java.lang.String $_reqStr(java.lang.String parentPath, com.typesafe.config.Config c, java.lang.String path, $TsCfgValidator $tsCfgValidator) {
+          if (c == null) return null;
+          try {
+            return c.getString(path);
+          } catch (com.typesafe.config.ConfigException e) {
+            $tsCfgValidator.addBadPath(parentPath + path, e);
+            return null;
+          }
+        }
+      }
+    }
+
     public static class Http2 {
+      public final int chunkStreamingCapacity;
+      public final boolean chunkStreamingEnabled;
+      public final int chunkStreamingOverflowMillis;
+      public final boolean gzipPassThroughEnabled;
       public final int idleTimeoutSecs;
       public final int maxThreads;
       public final int minThreads;
@@ -281,6 +401,10 @@ public class ConfigVals {
       public final boolean requestLoggingEnabled;
 
       public Http2(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.chunkStreamingCapacity = c.hasPathOrNull("chunkStreamingCapacity") ? c.getInt("chunkStreamingCapacity") : 16;
+        this.chunkStreamingEnabled = !c.hasPathOrNull("chunkStreamingEnabled") || c.getBoolean("chunkStreamingEnabled");
+        this.chunkStreamingOverflowMillis = c.hasPathOrNull("chunkStreamingOverflowMillis") ? c.getInt("chunkStreamingOverflowMillis") : 5000;
+        this.gzipPassThroughEnabled = !c.hasPathOrNull("gzipPassThroughEnabled") || c.getBoolean("gzipPassThroughEnabled");
         this.idleTimeoutSecs = c.hasPathOrNull("idleTimeoutSecs") ? c.getInt("idleTimeoutSecs") : 45;
         this.maxThreads = c.hasPathOrNull("maxThreads") ? c.getInt("maxThreads") : -1;
         this.minThreads = c.hasPathOrNull("minThreads") ? c.getInt("minThreads") : -1;
@@ -290,25 +414,45 @@ public class ConfigVals {
     }
 
     public static class Internal2 {
+      public final boolean batchedStreamsEnabled;
       public final Internal2.Blitz blitz;
       public final int chunkContextMapUnhealthySize;
+      public final int consolidatedHedgePercentile;
+      public final boolean consolidatedHedgingEnabled;
+      public final java.lang.String consolidatedRoutingMode;
       public final int maxAgentInactivitySecs;
+      public final int requestBatchLingerMillis;
+      public final int requestBatchMaxSize;
+      public final boolean scrapeCoalescingEnabled;
+      public final int scrapeCoalescingJoinWindowMillis;
+      public final int scrapeRequestBacklogCapacity;
+      public final java.lang.String scrapeRequestBacklogOverflowPolicy;
       public final int scrapeRequestBacklogUnhealthySize;
-      public final int scrapeRequestCheckMillis;
       public final int scrapeRequestMapUnhealthySize;
       public final int scrapeRequestTimeoutSecs;
+      public final int scrapeTimeoutMarginMillis;
       public final boolean staleAgentCheckEnabled;
       public final int staleAgentCheckPauseSecs;
       public final Internal2.Zipkin2 zipkin;
 
       public Internal2(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.batchedStreamsEnabled = !c.hasPathOrNull("batchedStreamsEnabled") || c.getBoolean("batchedStreamsEnabled");
         this.blitz = c.hasPathOrNull("blitz") ? new Internal2.Blitz(c.getConfig("blitz"), parentPath + "blitz.", $tsCfgValidator) : new Internal2.Blitz(com.typesafe.config.ConfigFactory.parseString("blitz{}"), parentPath + "blitz.", $tsCfgValidator);
         this.chunkContextMapUnhealthySize = c.hasPathOrNull("chunkContextMapUnhealthySize") ? c.getInt("chunkContextMapUnhealthySize") : 25;
+        this.consolidatedHedgePercentile = c.hasPathOrNull("consolidatedHedgePercentile") ? c.getInt("consolidatedHedgePercentile") : 95;
+        this.consolidatedHedgingEnabled = c.hasPathOrNull("consolidatedHedgingEnabled") && c.getBoolean("consolidatedHedgingEnabled");
+        this.consolidatedRoutingMode = c.hasPathOrNull("consolidatedRoutingMode") ? c.getString("consolidatedRoutingMode") : "fanout";
         this.maxAgentInactivitySecs = c.hasPathOrNull("maxAgentInactivitySecs") ? c.getInt("maxAgentInactivitySecs") : 60;
+        this.requestBatchLingerMillis = c.hasPathOrNull("requestBatchLingerMillis") ? c.getInt("requestBatchLingerMillis") : 2;
+        this.requestBatchMaxSize = c.hasPathOrNull("requestBatchMaxSize") ? c.getInt("requestBatchMaxSize") : 256;
+        this.scrapeCoalescingEnabled = c.hasPathOrNull("scrapeCoalescingEnabled") && c.getBoolean("scrapeCoalescingEnabled");
+        this.scrapeCoalescingJoinWindowMillis = c.hasPathOrNull("scrapeCoalescingJoinWindowMillis") ? c.getInt("scrapeCoalescingJoinWindowMillis") : 5000;
+        this.scrapeRequestBacklogCapacity = c.hasPathOrNull("scrapeRequestBacklogCapacity") ? c.getInt("scrapeRequestBacklogCapacity") : 256;
+        this.scrapeRequestBacklogOverflowPolicy = c.hasPathOrNull("scrapeRequestBacklogOverflowPolicy") ? c.getString("scrapeRequestBacklogOverflowPolicy") : "suspend";
         this.scrapeRequestBacklogUnhealthySize = c.hasPathOrNull("scrapeRequestBacklogUnhealthySize") ? c.getInt("scrapeRequestBacklogUnhealthySize") : 25;
-        this.scrapeRequestCheckMillis = c.hasPathOrNull("scrapeRequestCheckMillis") ? c.getInt("scrapeRequestCheckMillis") : 500;
         this.scrapeRequestMapUnhealthySize = c.hasPathOrNull("scrapeRequestMapUnhealthySize") ? c.getInt("scrapeRequestMapUnhealthySize") : 25;
         this.scrapeRequestTimeoutSecs = c.hasPathOrNull("scrapeRequestTimeoutSecs") ? c.getInt("scrapeRequestTimeoutSecs") : 90;
+        this.scrapeTimeoutMarginMillis = c.hasPathOrNull("scrapeTimeoutMarginMillis") ? c.getInt("scrapeTimeoutMarginMillis") : 500;
         this.staleAgentCheckEnabled = !c.hasPathOrNull("staleAgentCheckEnabled") || c.getBoolean("staleAgentCheckEnabled");
         this.staleAgentCheckPauseSecs = c.hasPathOrNull("staleAgentCheckPauseSecs") ? c.getInt("staleAgentCheckPauseSecs") : 10;
         this.zipkin = c.hasPathOrNull("zipkin") ? new Internal2.Zipkin2(c.getConfig("zipkin"), parentPath + "zipkin.", $tsCfgValidator) : new Internal2.Zipkin2(com.typesafe.config.ConfigFactory.parseString("zipkin{}"), parentPath + "zipkin.", $tsCfgValidator);
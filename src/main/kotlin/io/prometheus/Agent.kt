@@ -18,7 +18,6 @@
 
 package io.prometheus
 
-import com.github.pambrose.common.coroutine.delay
 import com.github.pambrose.common.delegate.AtomicDelegates.nonNullableReference
 import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
 import com.github.pambrose.common.service.GenericService
@@ -54,6 +53,7 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Semaphore
 import mu.two.KLogging
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit.MILLISECONDS
@@ -62,6 +62,7 @@ import kotlin.math.roundToInt
 import kotlin.time.Duration
 import kotlin.time.Duration.Companion.milliseconds
 import kotlin.time.Duration.Companion.seconds
+import kotlin.time.DurationUnit.SECONDS
 import kotlin.time.TimeMark
 import kotlin.time.TimeSource.Monotonic
 
@@ -81,6 +82,8 @@ class Agent(
     isTestMode = testMode
   ) {
   private val agentConfigVals = configVals.agent.internal
+  // Parsed here, so a bad value fails at startup rather than when the first heartbeat is due
+  private val heartbeatMode = HeartbeatMode.fromConfig(agentConfigVals.heartbeatMode)
   private val clock = Monotonic
   private val agentHttpService = AgentHttpService(this)
   private val initialConnectionLatch = CountDownLatch(1)
@@ -91,6 +94,12 @@ class Agent(
 
   internal val agentName = options.agentName.ifBlank { "Unnamed-${hostInfo.hostName}" }
   internal val scrapeRequestBacklogSize = AtomicInteger(0)
+  internal val scrapeInflightCount = AtomicInteger(0)
+
+  // The channels of the current connection, reported by the channel size gauges
+  @Volatile
+  internal var connectionContext: AgentConnectionContext? = null
+    private set
   internal val pathManager = AgentPathManager(this)
   internal val grpcService = AgentGrpcService(this, options, inProcessServerName)
   internal var agentId: String by nonNullableReference("")
@@ -117,6 +126,7 @@ class Agent(
     logger.info { "Agent name: $agentName" }
     logger.info { "Proxy reconnect pause time: ${agentConfigVals.reconnectPauseSecs.seconds}" }
     logger.info { "Scrape timeout time: ${options.scrapeTimeoutSecs.seconds}" }
+    logger.info { "Scrape max concurrency: ${options.scrapeMaxConcurrency}" }
 
     initServletService {
       if (options.debugEnabled) {
@@ -151,13 +161,23 @@ class Agent(
       // Reset values for each connection attempt
       pathManager.clear()
       scrapeRequestBacklogSize.set(0)
+      scrapeInflightCount.set(0)
       lastMsgSentMark = clock.markNow()
 
       if (grpcService.connectAgent(configVals.agent.transportFilterDisabled)) {
-        grpcService.registerAgent(initialConnectionLatch)
+        val registration = grpcService.registerAgent(initialConnectionLatch)
         pathManager.registerPaths()
 
-        val connectionContext = AgentConnectionContext()
+        val connectionContext =
+          AgentConnectionContext(
+            agentConfigVals,
+            registration.batchedStreams,
+            registration.contentAsBytes,
+            options.chunkContentSizeKbs,
+            onScrapeCancelled = { stage -> metrics { scrapeCancelCount.labels(launchId, stage).inc() } }
+          ) { queuedTime ->
+            metrics { scrapeOutputQueueLatency.labels(launchId).observe(queuedTime.toDouble(SECONDS)) }
+          }.also { this@Agent.connectionContext = it }
 
         coroutineScope {
           launch(Dispatchers.Default + exceptionHandler("readRequestsFromProxy")) {
@@ -165,7 +185,7 @@ class Agent(
           }
 
           launch(Dispatchers.Default + exceptionHandler("startHeartBeat")) {
-            startHeartBeat(connectionContext)
+            startHeartBeat(connectionContext, negotiatedHeartbeatMode(registration.streamHeartbeats))
           }
 
           // This exceptionHandler is not necessary
@@ -174,11 +194,28 @@ class Agent(
           }
 
           launch(Dispatchers.Default + exceptionHandler("scrapeResultsChannel.send")) {
+            // Scrapes wait for their host's permit and then a global one in AgentHttpService, so a slow host
+            // does not hold the global permits. This only bounds the number of waiting scrape coroutines.
+            val scrapePermits = Semaphore(options.scrapeMaxConcurrency + agentConfigVals.scrapeRequestChannelCapacity)
             // This is terminated by connectionContext.close()
             for (scrapeRequestAction in connectionContext.scrapeRequestsChannel) {
-              // The url fetch occurs during the invoke() on the scrapeRequestAction
-              val scrapeResponse = scrapeRequestAction.invoke()
-              connectionContext.scrapeResultsChannel.send(scrapeResponse)
+              // Stop reading from the channel until a permit is available, so requests back up
+              // in the channel rather than in an unbounded number of coroutines
+              scrapePermits.acquire()
+              launch {
+                scrapeInflightCount.incrementAndGet()
+                try {
+                  // The url fetch occurs during the invoke() on the scrapeRequestAction
+                  val scrapeResponse = scrapeRequestAction.invoke()
+                  if (scrapeResponse != null)
+                    connectionContext.scrapeResultsChannel.send(scrapeResponse)
+                  else
+                    scrapeRequestBacklogSize.decrementAndGet()
+                } finally {
+                  scrapeInflightCount.decrementAndGet()
+                  scrapePermits.release()
+                }
+              }
             }
           }
         }
@@ -224,19 +261,37 @@ class Agent(
     )
   }
 
-  private suspend fun startHeartBeat(connectionContext: AgentConnectionContext) =
+  // An older proxy treats a stream heartbeat as a scrape result, so stream mode needs the proxy to advertise support
+  private fun negotiatedHeartbeatMode(streamHeartbeats: Boolean) =
+    if (heartbeatMode == HeartbeatMode.STREAM && !streamHeartbeats) {
+      logger.info { "Proxy does not support stream heartbeats, falling back to ${HeartbeatMode.RPC}" }
+      HeartbeatMode.RPC
+    } else {
+      heartbeatMode
+    }
+
+  private suspend fun startHeartBeat(connectionContext: AgentConnectionContext, mode: HeartbeatMode) =
     if (agentConfigVals.heartbeatEnabled) {
-      val heartbeatPauseTime = agentConfigVals.heartbeatCheckPauseMillis.milliseconds
+      val retryPauseTime = agentConfigVals.heartbeatCheckPauseMillis.milliseconds
       val maxInactivityTime = agentConfigVals.heartbeatMaxInactivitySecs.seconds
-      logger.info { "Heartbeat scheduled to fire after $maxInactivityTime of inactivity" }
+      logger.info { "Heartbeat ($mode) scheduled to fire after $maxInactivityTime of inactivity" }
 
       while (isRunning && connectionContext.connected) {
-        val timeSinceLastWrite = lastMsgSentMark.elapsedNow()
-        if (timeSinceLastWrite > maxInactivityTime) {
+        // Sleep until a heartbeat is due, which is pushed back by every message sent to the proxy
+        val timeUntilDue = maxInactivityTime - lastMsgSentMark.elapsedNow()
+        if (timeUntilDue.isPositive()) {
+          connectionContext.awaitDisconnect(timeUntilDue)
+        } else {
           logger.debug { "Sending heartbeat" }
-          grpcService.sendHeartBeat()
+          when (mode) {
+            HeartbeatMode.STREAM -> grpcService.sendStreamHeartBeat(connectionContext)
+            HeartbeatMode.RPC -> grpcService.sendHeartBeat()
+          }
+
+          // Do not spin if the heartbeat could not be sent
+          if (lastMsgSentMark.elapsedNow() > maxInactivityTime)
+            connectionContext.awaitDisconnect(retryPauseTime)
         }
-        delay(heartbeatPauseTime)
       }
       logger.info { "Heartbeat completed" }
     } else {
@@ -262,6 +317,7 @@ class Agent(
 
   override fun shutDown() {
     grpcService.shutDown()
+    pathManager.close()
     super.shutDown()
   }
 
@@ -25,7 +25,6 @@ import com.github.pambrose.common.dsl.MetricsDsl.healthCheck
 import com.github.pambrose.common.service.GenericService
 import com.github.pambrose.common.servlet.LambdaServlet
 import com.github.pambrose.common.time.format
-import com.github.pambrose.common.util.MetricsUtils.newMapHealthCheck
 import com.github.pambrose.common.util.Version
 import com.github.pambrose.common.util.getBanner
 import com.google.common.base.Joiner
@@ -40,12 +39,18 @@ import io.prometheus.common.getVersionDesc
 import io.prometheus.proxy.AgentContext
 import io.prometheus.proxy.AgentContextCleanupService
 import io.prometheus.proxy.AgentContextManager
+import io.prometheus.proxy.ConsolidatedRoutingMode
 import io.prometheus.proxy.ProxyGrpcService
 import io.prometheus.proxy.ProxyHttpService
 import io.prometheus.proxy.ProxyMetrics
 import io.prometheus.proxy.ProxyOptions
 import io.prometheus.proxy.ProxyPathManager
+import io.prometheus.proxy.ScrapeAdmissionController
+import io.prometheus.proxy.ScrapeBacklogOverflowPolicy
+import io.prometheus.proxy.ScrapeRequestCoalescer
 import io.prometheus.proxy.ScrapeRequestManager
+import io.prometheus.proxy.ScrapeResultsCache
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.runBlocking
 import mu.two.KLogging
 import java.time.LocalDateTime
@@ -80,9 +85,22 @@ class Proxy(
   private val agentCleanupService by lazy { AgentContextCleanupService(this, proxyConfigVals) { addServices(this) } }
 
   internal val metrics by lazy { ProxyMetrics(this) }
-  internal val pathManager by lazy { ProxyPathManager(this, isTestMode) }
   internal val agentContextManager = AgentContextManager(isTestMode)
+  internal val pathManager =
+    ProxyPathManager(
+      agentContextManager,
+      isTestMode,
+      ConsolidatedRoutingMode.fromConfig(proxyConfigVals.consolidatedRoutingMode)
+    )
   internal val scrapeRequestManager = ScrapeRequestManager()
+  internal val scrapeRequestCoalescer =
+    ScrapeRequestCoalescer(proxyConfigVals.scrapeCoalescingJoinWindowMillis.milliseconds) { outcome ->
+      metrics { scrapeCoalesceCount.labels(outcome).inc() }
+    }
+  internal val scrapeResultsCache = ScrapeResultsCache(this, configVals.proxy.cache)
+  internal val scrapeAdmissionController = ScrapeAdmissionController(this, configVals.proxy.admission)
+  private val scrapeBacklogOverflowPolicy =
+    ScrapeBacklogOverflowPolicy.fromConfig(proxyConfigVals.scrapeRequestBacklogOverflowPolicy)
 
   init {
     fun toPlainText() = """
@@ -137,6 +155,8 @@ class Proxy(
   }
 
   override fun shutDown() {
+    // Do not leave http requests waiting on agents that will never respond
+    scrapeRequestManager.failAllScrapeRequests("Proxy stopped")
     grpcService.stopSync()
     httpService.stopSync()
     if (proxyConfigVals.staleAgentCheckEnabled)
@@ -158,17 +178,11 @@ class Proxy(
         register("grpc_service", grpcService.healthCheck)
         register(
           "chunking_map_check",
-          newMapHealthCheck(
-            agentContextManager.chunkedContextMap,
-            proxyConfigVals.chunkContextMapUnhealthySize
-          )
+          sizeHealthCheck(proxyConfigVals.chunkContextMapUnhealthySize) { agentContextManager.chunkedContextSize }
         )
         register(
           "scrape_response_map_check",
-          newMapHealthCheck(
-            scrapeRequestManager.scrapeRequestMap,
-            proxyConfigVals.scrapeRequestMapUnhealthySize
-          )
+          sizeHealthCheck(proxyConfigVals.scrapeRequestMapUnhealthySize) { scrapeRequestManager.scrapeMapSize }
         )
         register(
           "agent_scrape_request_backlog",
@@ -189,6 +203,16 @@ class Proxy(
       }
   }
 
+  private fun sizeHealthCheck(unhealthySize: Int, size: () -> Int) =
+    healthCheck {
+      size().let {
+        if (it < unhealthySize)
+          HealthCheck.Result.healthy()
+        else
+          HealthCheck.Result.unhealthy("Large size: $it")
+      }
+    }
+
   // This is called on agent disconnects
   internal fun removeAgentContext(agentId: String, reason: String): AgentContext? {
     require(agentId.isNotEmpty()) { EMPTY_AGENT_ID_MSG }
@@ -197,6 +221,25 @@ class Proxy(
     return agentContextManager.removeFromContextManager(agentId, reason)
   }
 
+  // This is called on agent evictions
+  internal fun removeAgentContexts(agentIds: List<String>, reason: String): List<AgentContext> {
+    pathManager.removeFromPathManager(agentIds, reason)
+    return agentIds.mapNotNull { agentContextManager.removeFromContextManager(it, reason) }
+  }
+
+  internal fun addAgentContext(agentContext: AgentContext) {
+    agentContextManager.addAgentContext(agentContext)
+    if (proxyConfigVals.staleAgentCheckEnabled)
+      agentCleanupService.scheduleEviction(agentContext)
+  }
+
+  internal fun newAgentContext(remoteAddr: String) =
+    AgentContext(
+      remoteAddr,
+      proxyConfigVals.scrapeRequestBacklogCapacity.let { if (it > 0) it else Channel.UNLIMITED },
+      scrapeBacklogOverflowPolicy
+    )
+
   internal fun metrics(args: ProxyMetrics.() -> Unit) {
     if (isMetricsEnabled)
       args.invoke(metrics)
@@ -19,21 +19,131 @@
 package io.prometheus.agent
 
 import com.github.pambrose.common.delegate.AtomicDelegates.atomicBoolean
+import com.google.common.collect.Maps.newConcurrentMap
 import io.ktor.utils.io.core.*
+import io.prometheus.common.ConfigVals
 import io.prometheus.common.ScrapeRequestAction
 import io.prometheus.common.ScrapeResults
-import kotlinx.coroutines.channels.Channel
+import io.prometheus.common.SizedChannel
+import io.prometheus.grpc.ScrapeResponse
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.ConcurrentMap
+import kotlin.time.Duration
+import kotlin.time.TimeMark
 
-internal class AgentConnectionContext : Closeable {
+internal class AgentConnectionContext(
+  agentConfigVals: ConfigVals.Agent.Internal,
+  val batchedStreams: Boolean,
+  val contentAsBytes: Boolean,
+  chunkContentSize: Int,
+  // Called with "before_start" or "in_flight" when the proxy cancels a scrape
+  private val onScrapeCancelled: (String) -> Unit = {},
+  private val onScrapeOutputQueued: (Duration) -> Unit = {},
+) : Closeable {
   private var disconnected by atomicBoolean(false)
-  val scrapeRequestsChannel = Channel<ScrapeRequestAction>(Channel.UNLIMITED)
-  val scrapeResultsChannel = Channel<ScrapeResults>(Channel.UNLIMITED)
+  private val disconnectSignal = CompletableDeferred<Unit>()
+  val scrapeRequestsChannel = SizedChannel<ScrapeRequestAction>(agentConfigVals.scrapeRequestChannelCapacity)
+  val scrapeResultsChannel = SizedChannel<ScrapeResults>(agentConfigVals.scrapeResultChannelCapacity)
+
+  // Chunks are written directly by scrapes as content is read, so these live with the connection
+  val nonChunkedChannel = SizedChannel<QueuedResponse>(agentConfigVals.nonChunkedChannelCapacity)
+  val chunkedStreams =
+    ChunkedResponseStreams(
+      agentConfigVals.chunkedStreamCount,
+      agentConfigVals.chunkChannelCapacity,
+      // Room for a full chunk and its message fields, so each scrape sends about one chunk per round
+      chunkContentSize + CHUNK_OVERHEAD_BYTES,
+      onScrapeOutputQueued
+    )
+
+  // Scrapes read from the proxy and not yet completed, so the proxy can cancel them
+  private val scrapeCancellations: ConcurrentMap<Long, ScrapeCancellation> = newConcurrentMap()
+
+  fun addScrape(scrapeId: Long) {
+    scrapeCancellations[scrapeId] = ScrapeCancellation()
+  }
+
+  // A scrape that already completed is ignored
+  fun cancelScrape(scrapeId: Long) {
+    scrapeCancellations[scrapeId]?.cancel()
+  }
+
+  // Returns null if the scrape is cancelled, either before it starts or while it is running
+  suspend fun runScrape(scrapeId: Long, block: suspend () -> ScrapeResults): ScrapeResults? {
+    val cancellation = scrapeCancellations[scrapeId] ?: ScrapeCancellation()
+    try {
+      if (cancellation.cancelled) {
+        onScrapeCancelled("before_start")
+        return null
+      }
+
+      return coroutineScope {
+        val job = async { block() }
+        cancellation.assign(job)
+        try {
+          job.await()
+        } catch (e: CancellationException) {
+          // Rethrown if this coroutine, rather than just the scrape, was cancelled
+          currentCoroutineContext().ensureActive()
+          onScrapeCancelled("in_flight")
+          null
+        }
+      }
+    } finally {
+      scrapeCancellations.remove(scrapeId)
+    }
+  }
+
+  // Reports how long a scrape response waited for the stream, the same as the chunk schedulers do
+  fun dequeued(queued: QueuedResponse): ScrapeResponse =
+    queued.response
+      .also { queued.queuedMark?.also { onScrapeOutputQueued(it.elapsedNow()) } }
 
   override fun close() {
     disconnected = true
+    disconnectSignal.complete(Unit)
     scrapeRequestsChannel.cancel()
     scrapeResultsChannel.cancel()
   }
 
   val connected get() = !disconnected
-}
\ No newline at end of file
+
+  // Returns false if the connection is still open after waitTime
+  suspend fun awaitDisconnect(waitTime: Duration) = withTimeoutOrNull(waitTime) { disconnectSignal.await() } != null
+
+  // Heartbeats have no mark, as they are not scrapes
+  class QueuedResponse(val response: ScrapeResponse, val queuedMark: TimeMark? = null)
+
+  private class ScrapeCancellation {
+    private var job: Job? = null
+
+    @Volatile
+    var cancelled = false
+      private set
+
+    @Synchronized
+    fun assign(job: Job) {
+      this.job = job
+      // The cancellation may have arrived after the check in runScrape()
+      if (cancelled)
+        job.cancel()
+    }
+
+    @Synchronized
+    fun cancel() {
+      cancelled = true
+      job?.cancel()
+    }
+  }
+
+  companion object {
+    private const val CHUNK_OVERHEAD_BYTES = 1024
+  }
+}
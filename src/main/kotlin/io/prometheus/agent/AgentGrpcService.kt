@@ -31,18 +31,20 @@ import io.grpc.ManagedChannel
 import io.grpc.Status
 import io.grpc.StatusRuntimeException
 import io.prometheus.Agent
+import io.prometheus.agent.AgentConnectionContext.QueuedResponse
 import io.prometheus.common.BaseOptions.Companion.HTTPS_PREFIX
 import io.prometheus.common.BaseOptions.Companion.HTTP_PREFIX
 import io.prometheus.common.DefaultObjects.EMPTY_INSTANCE
-import io.prometheus.common.GrpcObjects.newScrapeResponseChunk
-import io.prometheus.common.GrpcObjects.newScrapeResponseSummary
+import io.prometheus.common.GrpcObjects.newStreamHeartBeat
 import io.prometheus.common.Messages.EMPTY_AGENT_ID_MSG
 import io.prometheus.common.Messages.EMPTY_PATH_MSG
 import io.prometheus.common.ScrapeResults
-import io.prometheus.grpc.ChunkedScrapeResponse
+import io.prometheus.common.SizedChannel
 import io.prometheus.grpc.ProxyServiceGrpcKt
+import io.prometheus.grpc.RegisterAgentResponse
 import io.prometheus.grpc.ScrapeRequest
 import io.prometheus.grpc.ScrapeResponse
+import io.prometheus.grpc.ScrapeResponseBatch
 import io.prometheus.grpc.krotodc.AgentInfo
 import io.prometheus.grpc.krotodc.HeartBeatRequest
 import io.prometheus.grpc.krotodc.PathMapSizeRequest
@@ -52,7 +54,6 @@ import io.prometheus.grpc.krotodc.RegisterPathResponse
 import io.prometheus.grpc.krotodc.UnregisterPathRequest
 import io.prometheus.grpc.krotodc.UnregisterPathResponse
 import io.prometheus.grpc.krotodc.agentinfo.toProto
-import io.prometheus.grpc.krotodc.chunkedscraperesponse.toProto
 import io.prometheus.grpc.krotodc.heartbeatrequest.toProto
 import io.prometheus.grpc.krotodc.heartbeatresponse.toDataClass
 import io.prometheus.grpc.krotodc.pathmapsizerequest.toProto
@@ -65,22 +66,26 @@ import io.prometheus.grpc.krotodc.unregisterpathrequest.toProto
 import io.prometheus.grpc.krotodc.unregisterpathresponse.toDataClass
 import kotlinx.coroutines.CoroutineExceptionHandler
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.coroutineScope
-import kotlinx.coroutines.flow.consumeAsFlow
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import mu.two.KLogging
-import java.io.ByteArrayInputStream
 import java.util.concurrent.CountDownLatch
-import java.util.zip.CRC32
 import kotlin.properties.Delegates.notNull
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.DurationUnit.SECONDS
+import kotlin.time.TimeSource.Monotonic
 
 internal class AgentGrpcService(
   internal val agent: Agent,
   private val options: AgentOptions,
   private val inProcessServerName: String
 ) {
+  private val agentConfigVals = agent.configVals.agent.internal
   private var grpcStarted by atomicBoolean(false)
   private var stub: ProxyServiceGrpcKt.ProxyServiceCoroutineStub by notNull()
   private val tracing by lazy { agent.zipkinReporterService.newTracing("grpc_client") }
@@ -187,23 +192,27 @@ internal class AgentGrpcService(
       false
     }
 
-  suspend fun registerAgent(initialConnectionLatch: CountDownLatch) {
+  // Returns the proxy's response, which says which optional wire features it agreed to
+  suspend fun registerAgent(initialConnectionLatch: CountDownLatch): RegisterAgentResponse {
     val request =
       RegisterAgentRequest(
         agentId = agent.agentId,
         launchId = agent.launchId,
         agentName = agent.agentName,
         hostName = hostName,
-        consolidated = agent.options.consolidated
+        consolidated = agent.options.consolidated,
+        compactScrapeRequests = true,
+        batchedStreams = agentConfigVals.batchedStreamsEnabled
       ).apply { require(agentId.isNotEmpty()) { EMPTY_AGENT_ID_MSG } }
         .toProto()
-    stub.registerAgent(request)
+    val response = stub.registerAgent(request)
       .also { response ->
         agent.markMsgSent()
         if (!response.valid)
           throw RequestFailureException("registerAgent() - ${response.reason}")
       }
     initialConnectionLatch.countDown()
+    return response
   }
 
   fun pathMapSize() =
@@ -272,6 +281,21 @@ internal class AgentGrpcService(
       }
   }
 
+  // Queues a heartbeat on the response stream, which the proxy treats as agent activity
+  fun sendStreamHeartBeat(connectionContext: AgentConnectionContext) {
+    agent.agentId
+      .also { agentId ->
+        if (agentId.isNotEmpty()) {
+          // A full channel means responses are already flowing, so the heartbeat is not needed
+          val heartBeat = QueuedResponse(newStreamHeartBeat(agentId).toProto())
+          if (connectionContext.nonChunkedChannel.trySend(heartBeat).isSuccess)
+            agent.markMsgSent()
+          else
+            logger.debug { "Stream heartbeat not queued" }
+        }
+      }
+  }
+
   suspend fun readRequestsFromProxy(agentHttpService: AgentHttpService, connectionContext: AgentConnectionContext) {
     connectionContext
       .use {
@@ -279,73 +303,108 @@ internal class AgentGrpcService(
           AgentInfo(agent.agentId)
             .apply { require(this.agentId.isNotEmpty()) { EMPTY_AGENT_ID_MSG } }
             .toProto()
-        stub.readRequestsFromProxy(agentInfo)
-          .collect { grpcRequest: ScrapeRequest ->
-            // The actual fetch happens at the other end of the channel, not here.
-            val request = grpcRequest.toDataClass()
-            logger.debug { "readRequestsFromProxy():\n$request" }
-            connectionContext.scrapeRequestsChannel.send { agentHttpService.fetchScrapeUrl(request) }
-            agent.scrapeRequestBacklogSize.incrementAndGet()
+        suspend fun queueScrapeRequest(grpcRequest: ScrapeRequest) {
+          if (grpcRequest.cancelScrape) {
+            logger.debug { "Cancelling scrapeId: ${grpcRequest.scrapeId}" }
+            connectionContext.cancelScrape(grpcRequest.scrapeId)
+            return
           }
+
+          // The actual fetch happens at the other end of the channel, not here.
+          val request = grpcRequest.toDataClass()
+          logger.debug { "readRequestsFromProxy():\n$request" }
+          connectionContext.addScrape(request.scrapeId)
+          val queuedTimeMark = Monotonic.markNow()
+          val deadline = if (request.scrapeTimeoutMillis > 0) queuedTimeMark + request.scrapeTimeoutMillis.milliseconds else null
+          connectionContext.scrapeRequestsChannel.send {
+            agent.metrics {
+              scrapeQueueWaitLatency.labels(agent.launchId).observe(queuedTimeMark.elapsedNow().toDouble(SECONDS))
+            }
+            connectionContext.runScrape(request.scrapeId) {
+              agentHttpService.fetchScrapeUrl(request, connectionContext.chunkedStreams, deadline)
+            }
+          }
+          agent.scrapeRequestBacklogSize.incrementAndGet()
+        }
+
+        if (connectionContext.batchedStreams)
+          stub.readRequestBatchesFromProxy(agentInfo)
+            .collect { batch -> batch.requestsList.forEach { queueScrapeRequest(it) } }
+        else
+          stub.readRequestsFromProxy(agentInfo)
+            .collect { queueScrapeRequest(it) }
       }
   }
 
+  // Sends whatever responses are queued in a single stream message, lingering briefly only during a burst
+  private fun SizedChannel<QueuedResponse>.batchedFlow(
+    connectionContext: AgentConnectionContext
+  ): Flow<ScrapeResponseBatch> =
+    flow {
+      val linger = agentConfigVals.responseBatchLingerMillis.milliseconds
+      val maxBytes = agentConfigVals.responseBatchMaxBytes
+      // A response that did not fit in the previous batch
+      var carried: ScrapeResponse? = null
+      while (true) {
+        val first = carried ?: receiveCatching().getOrNull()?.let { connectionContext.dequeued(it) } ?: break
+        carried = null
+
+        val batch = ScrapeResponseBatch.newBuilder().addResponses(first)
+        var byteCount = first.serializedSize
+        // Lingers once the queue is drained, and only if more than one response was queued
+        var lingered = !linger.isPositive()
+        while (true) {
+          val next = tryReceive().getOrNull()?.let { connectionContext.dequeued(it) }
+          if (next == null) {
+            if (lingered || batch.responsesCount == 1)
+              break
+            lingered = true
+            delay(linger)
+            continue
+          }
+          if (byteCount + next.serializedSize > maxBytes) {
+            carried = next
+            break
+          }
+          batch.addResponses(next)
+          byteCount += next.serializedSize
+        }
+        emit(batch.build())
+      }
+    }
+
   private suspend fun processScrapeResults(
     agent: Agent,
-    scrapeResultsChannel: Channel<ScrapeResults>,
-    nonChunkedChannel: Channel<ScrapeResponse>,
-    chunkedChannel: Channel<ChunkedScrapeResponse>
+    scrapeResultsChannel: SizedChannel<ScrapeResults>,
+    nonChunkedChannel: SizedChannel<QueuedResponse>,
+    chunkedStreams: ChunkedResponseStreams,
+    contentAsBytesAccepted: Boolean
   ) =
     try {
       for (scrapeResults: ScrapeResults in scrapeResultsChannel) {
         val scrapeId = scrapeResults.scrapeId
 
-        if (!scrapeResults.zipped) {
-          logger.debug { "Writing non-chunked msg scrapeId: $scrapeId length: ${scrapeResults.contentAsText.length}" }
-          nonChunkedChannel.send(scrapeResults.toScrapeResponse().toProto())
-          agent.metrics { scrapeResultCount.labels(agent.launchId, "non-gzipped").inc() }
-        } else {
-          val zipped = scrapeResults.contentAsZipped
-          val chunkContentSize = options.chunkContentSizeKbs
+        when {
+          // Header, chunks and summary were already sent while the content was read
+          scrapeResults.chunked -> {
+            logger.debug { "Chunked msg already written for scrapeId: $scrapeId" }
+            agent.metrics { scrapeResultCount.labels(agent.launchId, "chunked").inc() }
+          }
 
-          logger.debug { "Comparing ${zipped.size} and $chunkContentSize" }
+          !scrapeResults.zipped -> {
+            logger.debug { "Writing non-chunked msg scrapeId: $scrapeId length: ${scrapeResults.contentAsBytes.size()}" }
+            nonChunkedChannel.send(
+              QueuedResponse(scrapeResults.toScrapeResponse(contentAsBytesAccepted).toProto(), Monotonic.markNow())
+            )
+            agent.metrics { scrapeResultCount.labels(agent.launchId, "non-gzipped").inc() }
+          }
 
-          if (zipped.size < chunkContentSize) {
-            logger.debug { "Writing zipped non-chunked msg scrapeId: $scrapeId length: ${zipped.size}" }
-            nonChunkedChannel.send(scrapeResults.toScrapeResponse().toProto())
+          else -> {
+            logger.debug { "Writing zipped non-chunked msg scrapeId: $scrapeId length: ${scrapeResults.contentAsZipped.size()}" }
+            nonChunkedChannel.send(
+              QueuedResponse(scrapeResults.toScrapeResponse(contentAsBytesAccepted).toProto(), Monotonic.markNow())
+            )
             agent.metrics { scrapeResultCount.labels(agent.launchId, "gzipped").inc() }
-          } else {
-            scrapeResults.toScrapeResponseHeader()
-              .also {
-                logger.debug { "Writing header length: ${zipped.size} for scrapeId: $scrapeId " }
-                chunkedChannel.send(it.toProto())
-              }
-
-            var totalByteCount = 0
-            var totalChunkCount = 0
-            val checksum = CRC32()
-            val bais = ByteArrayInputStream(zipped)
-            val buffer = ByteArray(chunkContentSize)
-            var readByteCount: Int
-
-            while (bais.read(buffer).also { bytesRead -> readByteCount = bytesRead } > 0) {
-              totalChunkCount++
-              totalByteCount += readByteCount
-              checksum.update(buffer, 0, buffer.size)
-
-              newScrapeResponseChunk(scrapeId, totalChunkCount, readByteCount, checksum, buffer)
-                .also {
-                  logger.debug { "Writing chunk $totalChunkCount for scrapeId: $scrapeId" }
-                  chunkedChannel.send(it.toProto())
-                }
-            }
-
-            newScrapeResponseSummary(scrapeId, totalChunkCount, totalByteCount, checksum)
-              .also {
-                logger.debug { "Writing summary totalChunkCount: $totalChunkCount for scrapeID: $scrapeId" }
-                chunkedChannel.send(it.toProto())
-                agent.metrics { scrapeResultCount.labels(agent.launchId, "chunked").inc() }
-              }
           }
         }
 
@@ -354,7 +413,7 @@ internal class AgentGrpcService(
       }
     } finally {
       nonChunkedChannel.close()
-      chunkedChannel.close()
+      chunkedStreams.close()
     }
 
   suspend fun writeResponsesToProxyUntilDisconnected(agent: Agent, connectionContext: AgentConnectionContext) {
@@ -368,22 +427,34 @@ internal class AgentGrpcService(
       }
 
     coroutineScope {
-      val nonChunkedChannel = Channel<ScrapeResponse>(Channel.UNLIMITED)
-      val chunkedChannel = Channel<ChunkedScrapeResponse>(Channel.UNLIMITED)
+      val nonChunkedChannel = connectionContext.nonChunkedChannel
+      val chunkedStreams = connectionContext.chunkedStreams
 
       launch(Dispatchers.Default + exceptionHandler()) {
-        processScrapeResults(agent, connectionContext.scrapeResultsChannel, nonChunkedChannel, chunkedChannel)
+        processScrapeResults(
+          agent,
+          connectionContext.scrapeResultsChannel,
+          nonChunkedChannel,
+          chunkedStreams,
+          connectionContext.contentAsBytes
+        )
       }
 
       connectionContext
         .use {
           coroutineScope {
             launch(Dispatchers.Default + exceptionHandler()) {
-              stub.writeResponsesToProxy(nonChunkedChannel.consumeAsFlow())
+              if (connectionContext.batchedStreams)
+                stub.writeResponseBatchesToProxy(nonChunkedChannel.batchedFlow(connectionContext))
+              else
+                stub.writeResponsesToProxy(nonChunkedChannel.consumeAsFlow().map { connectionContext.dequeued(it) })
             }
 
-            launch(Dispatchers.Default + exceptionHandler()) {
-              stub.writeChunkedResponsesToProxy(chunkedChannel.consumeAsFlow())
+            // Parallel streams, so a large chunked scrape does not hold up the others
+            chunkedStreams.schedulers.forEach { scheduler ->
+              launch(Dispatchers.Default + exceptionHandler()) {
+                stub.writeChunkedResponsesToProxy(scheduler.flow)
+              }
             }
           }
 
@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import com.github.pambrose.common.util.isNotNull
+import io.ktor.client.*
+import io.ktor.client.engine.cio.*
+import io.ktor.client.plugins.*
+import io.ktor.client.plugins.auth.*
+import io.ktor.client.plugins.auth.providers.*
+import io.ktor.http.*
+import io.prometheus.Agent
+import mu.two.KLogging
+import kotlin.time.Duration.Companion.seconds
+
+// HttpClients are shared by all paths with the same origin, TLS settings and credentials,
+// so keep-alive connections to an exporter are reused across scrapes
+internal class AgentHttpClientPool(private val agent: Agent) {
+  private val clientMap = mutableMapOf<HttpClientKey, SharedHttpClient>()
+
+  val size: Int
+    get() = synchronized(clientMap) { clientMap.size }
+
+  // Called when a path is registered, and paired with a release() when it is unregistered
+  fun acquire(url: String): SharedHttpClient {
+    val key = HttpClientKey(url, agent.configVals.agent.http.enableTrustAllX509Certificates)
+    return synchronized(clientMap) {
+      val shared = clientMap[key]
+      if (shared.isNotNull()) {
+        shared.refCount++
+        agent.metrics { httpClientCount.labels(agent.launchId, "shared").inc() }
+        shared
+      } else {
+        logger.debug { "Creating HttpClient for ${key.origin}" }
+        SharedHttpClient(key, newHttpClient(key))
+          .also {
+            clientMap[key] = it
+            agent.metrics { httpClientCount.labels(agent.launchId, "created").inc() }
+          }
+      }
+    }
+  }
+
+  // A scrape holds a reference while it runs, so unregistering its path does not close the client under it
+  suspend fun <T> withClient(shared: SharedHttpClient, block: suspend (HttpClient) -> T): T {
+    synchronized(clientMap) {
+      // A client already closed by an unregister fails the scrape when it is used
+      if (!shared.closed)
+        shared.refCount++
+    }
+    try {
+      return block(shared.client)
+    } finally {
+      release(shared)
+    }
+  }
+
+  fun release(shared: SharedHttpClient) =
+    synchronized(clientMap) {
+      if (!shared.closed && --shared.refCount == 0) {
+        if (clientMap[shared.key] === shared)
+          clientMap.remove(shared.key)
+        closeClient(shared)
+      }
+    }
+
+  fun close() =
+    synchronized(clientMap) {
+      clientMap.values.forEach { closeClient(it) }
+      clientMap.clear()
+    }
+
+  private fun closeClient(shared: SharedHttpClient) {
+    logger.debug { "Closing HttpClient for ${shared.key.origin}" }
+    shared.closed = true
+    shared.client.close()
+    agent.metrics { httpClientCount.labels(agent.launchId, "closed").inc() }
+  }
+
+  private fun newHttpClient(key: HttpClientKey) =
+    HttpClient(CIO) {
+      expectSuccess = false
+      engine {
+        val timeout = agent.configVals.agent.internal.cioTimeoutSecs.seconds
+        requestTimeout = timeout.inWholeMilliseconds
+
+        if (key.trustAllX509Certificates) {
+          https {
+            // trustManager = SslSettings.getTrustManager()
+            trustManager = TrustAllX509TrustManager
+          }
+        }
+      }
+
+      install(HttpTimeout)
+
+      install(HttpRequestRetry) {
+        agent.options.scrapeMaxRetries.also { maxRetries ->
+          if (maxRetries <= 0)
+            noRetry()
+          else {
+            retryOnException(maxRetries)
+            retryIf(maxRetries) { _, response ->
+              !response.status.isSuccess() && response.status != HttpStatusCode.NotFound
+            }
+            modifyRequest { it.headers.append("x-retry-count", retryCount.toString()) }
+            exponentialDelay()
+          }
+        }
+      }
+
+      val user = key.user
+      val passwd = key.password
+      if (user.isNotNull() && passwd.isNotNull()) {
+        install(Auth) {
+          basic {
+            credentials {
+              BasicAuthCredentials(user, passwd)
+            }
+          }
+        }
+      }
+    }
+
+  // refCount covers the paths registered to the client and its in-flight scrapes, and is guarded by clientMap
+  class SharedHttpClient internal constructor(internal val key: HttpClientKey, val client: HttpClient) {
+    internal var refCount = 1
+    internal var closed = false
+
+    override fun toString() = "SharedHttpClient($key)"
+  }
+
+  class HttpClientKey internal constructor(url: String, val trustAllX509Certificates: Boolean) {
+    private val urlObj = Url(url)
+    val origin = "${urlObj.protocol.name}://${urlObj.host}:${urlObj.port}"
+    val user: String? = urlObj.user
+    val password: String? = urlObj.password
+
+    override fun equals(other: Any?): Boolean {
+      if (this === other) return true
+      if (javaClass != other?.javaClass) return false
+      other as HttpClientKey
+      return origin == other.origin &&
+          trustAllX509Certificates == other.trustAllX509Certificates &&
+          user == other.user &&
+          password == other.password
+    }
+
+    override fun hashCode() = listOf(origin, trustAllX509Certificates, user, password).hashCode()
+
+    // Credentials are intentionally left out
+    override fun toString() = origin
+  }
+
+  companion object : KLogging()
+}
@@ -18,18 +18,11 @@
 
 package io.prometheus.agent
 
-import com.github.pambrose.common.dsl.KtorDsl.get
-import com.github.pambrose.common.util.isNotNull
 import com.github.pambrose.common.util.isNull
 import com.github.pambrose.common.util.simpleClassName
-import com.github.pambrose.common.util.zip
 import com.google.common.net.HttpHeaders
 import com.google.common.net.HttpHeaders.ACCEPT
-import io.ktor.client.*
-import io.ktor.client.engine.cio.*
 import io.ktor.client.plugins.*
-import io.ktor.client.plugins.auth.*
-import io.ktor.client.plugins.auth.providers.*
 import io.ktor.client.request.*
 import io.ktor.client.statement.*
 import io.ktor.http.*
@@ -37,24 +30,65 @@ import io.ktor.network.sockets.*
 import io.prometheus.Agent
 import io.prometheus.common.ScrapeResults
 import io.prometheus.grpc.krotodc.ScrapeRequest
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withTimeout
 import mu.two.KLogging
 import java.io.IOException
 import java.net.URLDecoder
 import java.net.http.HttpConnectTimeoutException
 import java.util.concurrent.atomic.AtomicReference
 import kotlin.text.Charsets.UTF_8
+import kotlin.time.Duration
 import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeMark
 
 internal class AgentHttpService(val agent: Agent) {
+  private val maxConcurrencyPerHost = agent.options.scrapeMaxConcurrencyPerHost
+  private val scrapePermits = Semaphore(agent.options.scrapeMaxConcurrency)
 
-  suspend fun fetchScrapeUrl(request: ScrapeRequest): ScrapeResults =
+  // Map host to its permits, guarded by itself. An entry is removed once no scrape holds or waits on it.
+  private val hostPermits = mutableMapOf<String, HostPermits>()
+
+  private class HostPermits(permitCount: Int) {
+    val semaphore = Semaphore(permitCount)
+    var userCount = 0
+  }
+
+  // The host permit is taken before the global one, so scrapes blocked on a busy host do not hold global permits
+  private suspend fun <T> withScrapePermits(host: String, block: suspend () -> T): T {
+    if (maxConcurrencyPerHost <= 0)
+      return scrapePermits.withPermit { block() }
+
+    val permits = synchronized(hostPermits) {
+      hostPermits.getOrPut(host) { HostPermits(maxConcurrencyPerHost) }.also { it.userCount++ }
+    }
+    try {
+      return permits.semaphore.withPermit { scrapePermits.withPermit { block() } }
+    } finally {
+      synchronized(hostPermits) {
+        if (--permits.userCount == 0)
+          hostPermits.remove(host)
+      }
+    }
+  }
+
+  // The deadline is when the proxy gives up on the scrape, and it bounds the whole fetch, including retries
+  suspend fun fetchScrapeUrl(
+    request: ScrapeRequest,
+    chunkedStreams: ChunkedResponseStreams,
+    deadline: TimeMark? = null
+  ): ScrapeResults =
     ScrapeResults(
-      agentId = request.agentId,
+      agentId = request.agentId.ifEmpty { agent.agentId },
       scrapeId = request.scrapeId
     ).also { scrapeResults ->
       val scrapeMsg = AtomicReference("")
-      val path = request.path
+      // Compact requests carry only the path_id
+      val pathContext = if (request.pathId > 0) agent.pathManager[request.pathId] else agent.pathManager[request.path]
+      val path = pathContext?.path ?: request.path.ifEmpty { "pathId:${request.pathId}" }
       val encodedQueryParams = request.encodedQueryParams
       val authHeader =
         when {
@@ -62,9 +96,13 @@ internal class AgentHttpService(val agent: Agent) {
           else -> request.authHeader
         }
 
-      val pathContext = agent.pathManager[path]
-
-      if (pathContext.isNull()) {
+      if (deadline?.hasPassedNow() == true) {
+        // The proxy has already given up, so the request is dropped rather than fetched
+        logger.debug { "Scrape deadline passed before fetching $path" }
+        scrapeMsg.set("deadline_passed")
+        scrapeResults.statusCode = HttpStatusCode.GatewayTimeout.value
+        scrapeResults.failureReason = "Scrape deadline passed before fetch"
+      } else if (pathContext.isNull()) {
         logger.warn { "Invalid path in fetchScrapeUrl(): $path" }
         scrapeMsg.set("invalid_path")
         if (request.debugEnabled)
@@ -82,67 +120,41 @@ internal class AgentHttpService(val agent: Agent) {
         if (encodedQueryParams.isNotEmpty())
           logger.debug { "URL: $url" }
 
+        val chunkedWriter =
+          ChunkedScrapeWriter(
+            scrapeResults,
+            agent.options.minGzipSizeBytes,
+            agent.options.chunkContentSizeKbs,
+            chunkedStreams
+          )
+
         // Content is fetched here
         try {
           runCatching {
-            HttpClient(CIO) {
-              expectSuccess = false
-              engine {
-                val timeout = agent.configVals.agent.internal.cioTimeoutSecs.seconds
-                requestTimeout = timeout.inWholeMilliseconds
-
-                val enableTrustAllX509Certificates = agent.configVals.agent.http.enableTrustAllX509Certificates
-                if (enableTrustAllX509Certificates) {
-                  https {
-                    // trustManager = SslSettings.getTrustManager()
-                    trustManager = TrustAllX509TrustManager
-                  }
-                }
-              }
-
-              install(HttpTimeout)
-
-              install(HttpRequestRetry) {
-                agent.options.scrapeMaxRetries.also { maxRetries ->
-                  if (maxRetries <= 0)
-                    noRetry()
-                  else {
-                    retryOnException(maxRetries)
-                    retryIf(maxRetries) { _, response ->
-                      !response.status.isSuccess() && response.status != HttpStatusCode.NotFound
-                    }
-                    modifyRequest { it.headers.append("x-retry-count", retryCount.toString()) }
-                    exponentialDelay()
-                  }
-                }
-              }
-
-              val urlObj = Url(url)
-              val user = urlObj.user
-              val passwd = urlObj.password
-              if (user.isNotNull() && passwd.isNotNull()) {
-                install(Auth) {
-                  basic {
-                    credentials {
-                      BasicAuthCredentials(user, passwd)
+            val scrapeTimeout = agent.options.scrapeTimeoutSecs.seconds
+            val remainingTime = deadline?.let { -it.elapsedNow() } ?: Duration.INFINITE
+            withTimeout(remainingTime) {
+              withScrapePermits(pathContext.host) {
+                // The HttpClient is shared with other paths on the same origin, so it is not closed here.
+                // execute() leaves the body unread, so it can be streamed rather than buffered.
+                agent.pathManager.withHttpClient(pathContext) { httpClient ->
+                  httpClient
+                    .prepareGet(url) {
+                      request.accept.also { if (it.isNotEmpty()) header(ACCEPT, it) }
+                      val requestTimeout = minOf(scrapeTimeout, remainingTime)
+                      logger.debug { "Setting scrape request timeout = $requestTimeout" }
+                      timeout { requestTimeoutMillis = requestTimeout.inWholeMilliseconds }
+                      authHeader?.also { header(io.ktor.http.HttpHeaders.Authorization, it) }
                     }
-                  }
+                    .execute(getBlock(url, scrapeResults, scrapeMsg, request.debugEnabled, chunkedWriter))
                 }
               }
-            }.use { client ->
-              client.get(
-                url,
-                {
-                  request.accept.also { if (it.isNotEmpty()) header(ACCEPT, it) }
-                  val scrapeTimeout = agent.options.scrapeTimeoutSecs.seconds
-                  logger.debug { "Setting scrapeTimeoutSecs = $scrapeTimeout" }
-                  timeout { requestTimeoutMillis = scrapeTimeout.inWholeMilliseconds }
-                  authHeader?.also { header(io.ktor.http.HttpHeaders.Authorization, it) }
-                },
-                getBlock(url, scrapeResults, scrapeMsg, request.debugEnabled)
-              )
             }
           }.onFailure { e ->
+            // The proxy cancelled the scrape, so there is no one to report the failure to
+            if (e is CancellationException && e !is TimeoutCancellationException)
+              throw e
+
             scrapeResults.statusCode =
               when (e) {
                 is TimeoutCancellationException,
@@ -164,10 +176,13 @@ internal class AgentHttpService(val agent: Agent) {
                 }
               }
             scrapeResults.failureReason = e.message ?: e.simpleClassName
+            // The proxy is already waiting on chunks if the failure happened mid-body
+            chunkedWriter.abort(scrapeResults.failureReason)
             if (request.debugEnabled)
               scrapeResults.setDebugInfo(url, "${e.simpleClassName} - ${e.message}")
           }
         } finally {
+          chunkedWriter.releaseStream()
           requestTimer?.observeDuration()
         }
       }
@@ -178,7 +193,8 @@ internal class AgentHttpService(val agent: Agent) {
     url: String,
     responseArg: ScrapeResults,
     scrapeCounterMsg: AtomicReference<String>,
-    debugEnabled: Boolean
+    debugEnabled: Boolean,
+    chunkedWriter: ChunkedScrapeWriter
   ): suspend (HttpResponse) -> Unit =
     { response ->
       responseArg.statusCode = response.status.value
@@ -186,15 +202,10 @@ internal class AgentHttpService(val agent: Agent) {
       if (response.status.isSuccess()) {
         responseArg.apply {
           contentType = response.headers[HttpHeaders.CONTENT_TYPE].orEmpty()
-          // Zip the content here
-          val content = response.bodyAsText()
-          zipped = content.length > agent.configVals.agent.minGzipSizeBytes
-          if (zipped)
-            contentAsZipped = content.zip()
-          else
-            contentAsText = content
           validResponse = true
         }
+        // Zip and chunk the content here, as it is read
+        chunkedWriter.writeFrom(response.bodyAsChannel())
         if (debugEnabled)
           responseArg.setDebugInfo(url)
         scrapeCounterMsg.set("success")
@@ -47,6 +47,34 @@ internal class AgentMetrics(agent: Agent) {
       labelNames(LAUNCH_ID, TYPE)
     }
 
+  val scrapeCancelCount =
+    counter {
+      name("agent_scrape_cancel_count")
+      help("Agent scrapes cancelled by the proxy")
+      labelNames(LAUNCH_ID, TYPE)
+    }
+
+  val scrapeQueueWaitLatency =
+    summary {
+      name("agent_scrape_queue_wait_seconds")
+      help("Agent scrape request queue wait time in seconds")
+      labelNames(LAUNCH_ID)
+    }
+
+  val scrapeOutputQueueLatency =
+    summary {
+      name("agent_scrape_output_queue_seconds")
+      help("Agent scrape time queued for output to the proxy in seconds")
+      labelNames(LAUNCH_ID)
+    }
+
+  val httpClientCount =
+    counter {
+      name("agent_http_client_count")
+      help("Agent HTTP clients created, shared by another path, and closed")
+      labelNames(LAUNCH_ID, TYPE)
+    }
+
   val scrapeRequestLatency =
     summary {
       name("agent_scrape_request_latency_seconds")
@@ -68,6 +96,54 @@ internal class AgentMetrics(agent: Agent) {
       labelValues = listOf(agent.launchId),
       data = { agent.scrapeRequestBacklogSize.get().toDouble() }
     )
+
+    SamplerGaugeCollector(
+      "agent_scrape_inflight",
+      "Agent scrapes in flight",
+      labelNames = listOf(LAUNCH_ID),
+      labelValues = listOf(agent.launchId),
+      data = { agent.scrapeInflightCount.get().toDouble() }
+    )
+
+    SamplerGaugeCollector(
+      "agent_scrape_request_channel_size",
+      "Agent scrape requests read from the proxy and not yet started",
+      labelNames = listOf(LAUNCH_ID),
+      labelValues = listOf(agent.launchId),
+      data = { agent.connectionContext?.scrapeRequestsChannel?.size?.toDouble() ?: 0.0 }
+    )
+
+    SamplerGaugeCollector(
+      "agent_scrape_result_channel_size",
+      "Agent completed scrapes not yet written as responses",
+      labelNames = listOf(LAUNCH_ID),
+      labelValues = listOf(agent.launchId),
+      data = { agent.connectionContext?.scrapeResultsChannel?.size?.toDouble() ?: 0.0 }
+    )
+
+    SamplerGaugeCollector(
+      "agent_non_chunked_channel_size",
+      "Agent non-chunked responses not yet sent to the proxy",
+      labelNames = listOf(LAUNCH_ID),
+      labelValues = listOf(agent.launchId),
+      data = { agent.connectionContext?.nonChunkedChannel?.size?.toDouble() ?: 0.0 }
+    )
+
+    SamplerGaugeCollector(
+      "agent_chunked_channel_size",
+      "Agent chunk messages not yet sent to the proxy",
+      labelNames = listOf(LAUNCH_ID),
+      labelValues = listOf(agent.launchId),
+      data = { agent.connectionContext?.chunkedStreams?.size?.toDouble() ?: 0.0 }
+    )
+
+    SamplerGaugeCollector(
+      "agent_http_client_pool_size",
+      "Agent HTTP client pool size",
+      labelNames = listOf(LAUNCH_ID),
+      labelValues = listOf(agent.launchId),
+      data = { agent.pathManager.httpClientPoolSize.toDouble() }
+    )
   }
 
   companion object {
@@ -58,6 +58,14 @@ class AgentOptions(argv: Array<String>, exitOnMissingConfig: Boolean) :
   var scrapeMaxRetries = -1
     private set
 
+  @Parameter(names = ["--max_concurrency"], description = "Scrape max concurrency")
+  var scrapeMaxConcurrency = -1
+    private set
+
+  @Parameter(names = ["--max_concurrency_per_host"], description = "Scrape max concurrency per host")
+  var scrapeMaxConcurrencyPerHost = -1
+    private set
+
   @Parameter(names = ["--chunk"], description = "Threshold for chunking content to Proxy and buffer size (KBs)")
   var chunkContentSizeKbs = -1
     private set
@@ -105,6 +113,16 @@ class AgentOptions(argv: Array<String>, exitOnMissingConfig: Boolean) :
           scrapeMaxRetries = SCRAPE_MAX_RETRIES.getEnv(agentConfigVals.scrapeMaxRetries)
         logger.info { "scrapeMaxRetries: $scrapeMaxRetries" }
 
+        if (scrapeMaxConcurrency == -1)
+          scrapeMaxConcurrency = SCRAPE_MAX_CONCURRENCY.getEnv(agentConfigVals.scrapeMaxConcurrency)
+        require(scrapeMaxConcurrency > 0) { "scrapeMaxConcurrency must be greater than 0" }
+        logger.info { "scrapeMaxConcurrency: $scrapeMaxConcurrency" }
+
+        if (scrapeMaxConcurrencyPerHost == -1)
+          scrapeMaxConcurrencyPerHost =
+            SCRAPE_MAX_CONCURRENCY_PER_HOST.getEnv(agentConfigVals.scrapeMaxConcurrencyPerHost)
+        logger.info { "scrapeMaxConcurrencyPerHost: $scrapeMaxConcurrencyPerHost" }
+
         if (chunkContentSizeKbs == -1)
           chunkContentSizeKbs = CHUNK_CONTENT_SIZE_KBS.getEnv(agentConfigVals.chunkContentSizeKbs)
         // Multiply the value time KB
@@ -139,6 +157,7 @@ class AgentOptions(argv: Array<String>, exitOnMissingConfig: Boolean) :
         logger.info { "agent.internal.cioTimeoutSecs: ${agentConfigVals.internal.cioTimeoutSecs.seconds}" }
         logger.info { "agent.internal.heartbeatCheckPauseMillis: ${agentConfigVals.internal.heartbeatCheckPauseMillis}" }
         logger.info { "agent.internal.heartbeatMaxInactivitySecs: ${agentConfigVals.internal.heartbeatMaxInactivitySecs}" }
+        logger.info { "agent.internal.heartbeatMode: ${agentConfigVals.internal.heartbeatMode}" }
       }
   }
 
@@ -21,18 +21,72 @@ package io.prometheus.agent
 import com.github.pambrose.common.util.isNotNull
 import com.github.pambrose.common.util.isNull
 import com.google.common.collect.Maps.newConcurrentMap
+import io.ktor.client.*
+import io.ktor.http.*
 import io.prometheus.Agent
 import io.prometheus.common.Messages.EMPTY_PATH_MSG
 import mu.two.KLogging
+import java.util.concurrent.atomic.AtomicReferenceArray
 
 internal class AgentPathManager(private val agent: Agent) {
 
   private val agentConfigVals = agent.configVals.agent
   private val pathContextMap = newConcurrentMap<String, PathContext>()
 
+  // Indexed by the slot in the low 32 bits of a pathId, so compact scrape requests are resolved without hashing
+  // the path. The proxy reuses slots, so the full id is compared to reject stale requests.
+  // Written in place under synchronized(this), and only copied when it grows.
+  @Volatile
+  private var pathContextsBySlot = AtomicReferenceArray<PathContext?>(0)
+  private val httpClientPool = AgentHttpClientPool(agent)
+
   operator fun get(path: String): PathContext? = pathContextMap[path]
 
-  fun clear() = pathContextMap.clear()
+  operator fun get(pathId: Long): PathContext? {
+    val slot = pathSlot(pathId)
+    return pathContextsBySlot
+      .let { if (slot > 0 && slot < it.length()) it[slot] else null }
+      ?.takeIf { it.pathId == pathId }
+  }
+
+  private fun pathSlot(pathId: Long) = if (pathId > 0) (pathId and PATH_SLOT_MASK).toInt() else 0
+
+  @Synchronized
+  private fun indexPathId(pathId: Long, pathContext: PathContext?) {
+    val slot = pathSlot(pathId)
+    if (slot <= 0)
+      return
+    var slots = pathContextsBySlot
+    if (pathContext == null) {
+      // The slot may already hold a newer registration
+      if (slot < slots.length() && slots[slot]?.pathId == pathId)
+        slots[slot] = null
+      return
+    }
+    if (slot >= slots.length()) {
+      slots = AtomicReferenceArray<PathContext?>(maxOf(slot + 1, slots.length() * 2))
+        .also { grown -> repeat(pathContextsBySlot.length()) { grown[it] = pathContextsBySlot[it] } }
+      pathContextsBySlot = slots
+    }
+    slots[slot] = pathContext
+  }
+
+  val httpClientPoolSize: Int
+    get() = httpClientPool.size
+
+  suspend fun <T> withHttpClient(pathContext: PathContext, block: suspend (HttpClient) -> T): T =
+    httpClientPool.withClient(pathContext.sharedClient, block)
+
+  fun clear() {
+    pathContextMap.values.forEach { httpClientPool.release(it.sharedClient) }
+    pathContextMap.clear()
+    synchronized(this) { pathContextsBySlot = AtomicReferenceArray(0) }
+  }
+
+  fun close() {
+    pathContextMap.clear()
+    httpClientPool.close()
+  }
 
   fun pathMapSize(): Int = agent.grpcService.pathMapSize()
 
@@ -65,7 +119,13 @@ internal class AgentPathManager(private val agent: Agent) {
     val pathId = agent.grpcService.registerPathOnProxy(path).pathId
     if (!agent.isTestMode)
       logger.info { "Registered $url as /$path" }
-    pathContextMap[path] = PathContext(pathId, path, url)
+    val pathContext = PathContext(pathId, path, url, httpClientPool.acquire(url))
+    pathContextMap.put(path, pathContext)
+      ?.also {
+        httpClientPool.release(it.sharedClient)
+        indexPathId(it.pathId, null)
+      }
+    indexPathId(pathId, pathContext)
   }
 
   suspend fun unregisterPath(pathVal: String) {
@@ -76,7 +136,12 @@ internal class AgentPathManager(private val agent: Agent) {
     val pathContext = pathContextMap.remove(path)
     when {
       pathContext.isNull() -> logger.info { "No path value /$path found in pathContextMap when unregistering" }
-      !agent.isTestMode -> logger.info { "Unregistered /$path for ${pathContext.url}" }
+      else -> {
+        httpClientPool.release(pathContext.sharedClient)
+        indexPathId(pathContext.pathId, null)
+        if (!agent.isTestMode)
+          logger.info { "Unregistered /$path for ${pathContext.url}" }
+      }
     }
   }
 
@@ -91,7 +156,17 @@ internal class AgentPathManager(private val agent: Agent) {
     private const val NAME = "name"
     private const val PATH = "path"
     private const val URL = "url"
+    private const val PATH_SLOT_MASK = 0xFFFF_FFFFL
   }
 
-  data class PathContext(val pathId: Long, val path: String, val url: String)
+  data class PathContext(
+    val pathId: Long,
+    val path: String,
+    val url: String,
+    val sharedClient: AgentHttpClientPool.SharedHttpClient
+  ) {
+    val host: String = Url(url).hostWithPort
+
+    override fun toString() = "PathContext(pathId=$pathId, path=$path, url=$url)"
+  }
 }
\ No newline at end of file
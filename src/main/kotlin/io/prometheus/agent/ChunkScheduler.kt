@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import io.prometheus.grpc.ChunkedScrapeResponse
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.selects.select
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource.Monotonic
+
+// Interleaves the messages of the chunked scrapes on one stream with deficit round-robin by bytes,
+// so a large scrape gets the same share of the stream as a small one instead of filling it first.
+// Each scrape has its own bounded queue, so a fast producer only suspends itself.
+internal class ChunkScheduler(
+  private val quantumBytes: Int,
+  private val queueCapacity: Int,
+  private val onScrapeFinished: (Duration) -> Unit = {}
+) {
+  private val newQueues = Channel<ScrapeQueue>(Channel.UNLIMITED)
+  private val openQueues = ConcurrentHashMap.newKeySet<ScrapeQueue>()
+
+  // Raised after every send, so the scheduler can wait when all of its queues are empty
+  private val dataSignal = Channel<Unit>(Channel.CONFLATED)
+  private val queuedCount = AtomicInteger(0)
+
+  @Volatile
+  private var closed = false
+
+  val size: Int
+    get() = queuedCount.get()
+
+  inner class ScrapeQueue internal constructor() {
+    internal val channel = Channel<ChunkedScrapeResponse>(if (queueCapacity > 0) queueCapacity else Channel.UNLIMITED)
+    internal var head: ChunkedScrapeResponse? = null
+    internal var deficit = 0
+    internal var finished = false
+
+    // The time from the first message being queued to the latest one being sent, so the
+    // time queued per scrape does not grow with its number of chunks
+    @Volatile
+    internal var firstQueuedMark: TimeMark? = null
+    internal var queuedTime = Duration.ZERO
+
+    suspend fun send(response: ChunkedScrapeResponse) {
+      if (firstQueuedMark == null)
+        firstQueuedMark = Monotonic.markNow()
+      channel.send(response)
+      queuedCount.incrementAndGet()
+      dataSignal.trySend(Unit)
+    }
+
+    // Messages already queued are still sent
+    fun close() {
+      if (openQueues.remove(this)) {
+        channel.close()
+        dataSignal.trySend(Unit)
+      }
+    }
+
+    // Returns the next message without removing it, or null if none is queued
+    internal fun peek(): ChunkedScrapeResponse? =
+      head ?: channel.tryReceive()
+        .also { if (it.isClosed) finished = true }
+        .getOrNull()
+        .also { head = it }
+  }
+
+  fun open(): ScrapeQueue =
+    ScrapeQueue()
+      .also {
+        openQueues += it
+        newQueues.trySend(it)
+      }
+
+  fun close() {
+    closed = true
+    newQueues.close()
+    openQueues.forEach { it.channel.cancel() }
+    openQueues.clear()
+  }
+
+  val flow: Flow<ChunkedScrapeResponse> =
+    flow {
+      val active = ArrayDeque<ScrapeQueue>()
+      while (true) {
+        while (true)
+          active += newQueues.tryReceive().getOrNull() ?: break
+
+        var progressed = false
+        repeat(active.size) {
+          val queue = active.removeFirst()
+          queue.deficit += quantumBytes
+          while (true) {
+            val message = queue.peek() ?: break
+            val byteCount = message.serializedSize
+            if (byteCount > queue.deficit)
+              break
+            queue.head = null
+            queue.deficit -= byteCount
+            queue.queuedTime = queue.firstQueuedMark?.elapsedNow() ?: Duration.ZERO
+            queuedCount.decrementAndGet()
+            emit(message)
+            progressed = true
+          }
+
+          if (queue.finished && queue.head == null) {
+            if (!closed)
+              onScrapeFinished(queue.queuedTime)
+          } else {
+            // An idle scrape does not bank credit
+            if (queue.head == null)
+              queue.deficit = 0
+            active.addLast(queue)
+          }
+        }
+
+        // Wait for a new message, unless a message is only waiting for more deficit
+        if (!progressed && active.none { it.head != null }) {
+          val open =
+            select<Boolean> {
+              dataSignal.onReceive { true }
+              newQueues.onReceiveCatching { result ->
+                val queue = result.getOrNull()
+                if (queue != null)
+                  active += queue
+                // Once the scheduler is closed, the flow ends after the remaining scrapes are drained
+                queue != null || active.isNotEmpty()
+              }
+            }
+          if (!open)
+            break
+        }
+      }
+    }
+}
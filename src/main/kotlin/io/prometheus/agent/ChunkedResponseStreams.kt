@@ -0,0 +1,70 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import kotlin.time.Duration
+
+// The schedulers feeding the agent's parallel writeChunkedResponsesToProxy streams.
+// A scrape stays on one stream, so its header, chunks and summary arrive in order.
+internal class ChunkedResponseStreams(
+  streamCount: Int,
+  queueCapacity: Int,
+  quantumBytes: Int,
+  onScrapeFinished: (Duration) -> Unit = {}
+) {
+  val schedulers = List(streamCount.coerceAtLeast(1)) { ChunkScheduler(quantumBytes, queueCapacity, onScrapeFinished) }
+
+  // Bytes sent and scrapes in progress on each stream
+  private val inProgressBytes = LongArray(schedulers.size)
+  private val inProgressScrapes = IntArray(schedulers.size)
+
+  val size: Int
+    get() = schedulers.sumOf { it.size }
+
+  // With more than one stream, the first is kept for small scrapes, so they never queue behind a large one.
+  // Large scrapes are spread over the others by in-progress scrapes and then bytes.
+  // Synchronized, so concurrent headers do not all pick the same stream.
+  @Synchronized
+  fun assign(large: Boolean): Int =
+    when {
+      schedulers.size == 1 -> 0
+      !large -> SMALL_STREAM
+      else -> (1 until schedulers.size).minWith(compareBy({ inProgressScrapes[it] }, { inProgressBytes[it] }))
+    }.also { inProgressScrapes[it]++ }
+
+  fun open(stream: Int) = schedulers[stream].open()
+
+  @Synchronized
+  fun addBytes(stream: Int, byteCount: Int) {
+    inProgressBytes[stream] += byteCount.toLong()
+  }
+
+  // Called once for each assigned scrape
+  @Synchronized
+  fun release(stream: Int, byteCount: Int) {
+    inProgressBytes[stream] -= byteCount.toLong()
+    inProgressScrapes[stream]--
+  }
+
+  fun close() = schedulers.forEach { it.close() }
+
+  companion object {
+    private const val SMALL_STREAM = 0
+  }
+}
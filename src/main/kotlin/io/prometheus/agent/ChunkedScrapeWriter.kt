@@ -0,0 +1,194 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import com.google.protobuf.UnsafeByteOperations
+import io.ktor.utils.io.*
+import io.prometheus.common.GrpcObjects.newScrapeResponseChunk
+import io.prometheus.common.GrpcObjects.newScrapeResponseSummary
+import io.prometheus.common.ScrapeResults
+import io.prometheus.grpc.krotodc.chunkedscraperesponse.toProto
+import mu.two.KLogging
+import java.io.ByteArrayOutputStream
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.zip.CRC32
+import java.util.zip.GZIPOutputStream
+
+// Gzips exporter content as it is read and sends each chunk to the proxy as soon as it fills,
+// so a large scrape holds a few chunks of compressed content in memory rather than the whole payload.
+// Content that never fills a chunk is left in scrapeResults and sent as a non-chunked response.
+internal class ChunkedScrapeWriter(
+  private val scrapeResults: ScrapeResults,
+  private val minGzipSizeBytes: Int,
+  private val chunkContentSize: Int,
+  private val chunkedStreams: ChunkedResponseStreams
+) {
+  // Chunks are held until the scrape outgrows this or ends, so it is placed on a stream for its size
+  private val smallScrapeMaxBytes = chunkContentSize * SMALL_SCRAPE_CHUNK_COUNT
+
+  // The stream is picked when the header is sent, so only scrapes that are actually chunked are placed
+  private var stream = -1
+  private var streamByteCount = 0
+  private var streamReleased = false
+  private lateinit var chunkQueue: ChunkScheduler.ScrapeQueue
+
+  private val rawContent = ByteArrayOutputStream()
+  private val zippedContent = ChunkBuffer(chunkContentSize)
+  private var gzipStream: GZIPOutputStream? = null
+  private val checksum = CRC32()
+  private var totalChunkCount = 0
+  private var totalByteCount = 0
+
+  var headerSent = false
+    private set
+
+  suspend fun writeFrom(channel: ByteReadChannel) {
+    val buffer = readBuffers.poll() ?: ByteArray(READ_BUFFER_SIZE)
+    try {
+      while (true) {
+        val readByteCount = channel.readAvailable(buffer, 0, buffer.size)
+        if (readByteCount == -1)
+          break
+        write(buffer, readByteCount)
+      }
+      finish()
+    } finally {
+      readBuffers.offer(buffer)
+      // Frees the Deflater's native memory now rather than when it is garbage collected, including on failures
+      gzipStream?.close()
+    }
+  }
+
+  private suspend fun write(bytes: ByteArray, length: Int) {
+    val gzip = gzipStream
+    if (gzip == null) {
+      // Content is held uncompressed until it is large enough to be worth zipping
+      rawContent.write(bytes, 0, length)
+      if (rawContent.size() > minGzipSizeBytes) {
+        gzipStream = GZIPOutputStream(zippedContent).also { rawContent.writeTo(it) }
+        rawContent.reset()
+      }
+    } else {
+      gzip.write(bytes, 0, length)
+    }
+    sendFullChunks()
+  }
+
+  private suspend fun finish() {
+    val gzip = gzipStream
+    if (gzip == null) {
+      scrapeResults.contentAsBytes = UnsafeByteOperations.unsafeWrap(rawContent.toByteArray())
+      return
+    }
+
+    gzip.finish()
+
+    if (!headerSent && zippedContent.size() < chunkContentSize) {
+      scrapeResults.zipped = true
+      scrapeResults.contentAsZipped = UnsafeByteOperations.unsafeWrap(zippedContent.toByteArray())
+      return
+    }
+
+    sendFullChunks(finished = true)
+    if (zippedContent.size() > 0)
+      sendChunk(zippedContent.takeChunk(zippedContent.size()))
+
+    newScrapeResponseSummary(scrapeResults.scrapeId, totalChunkCount, totalByteCount, checksum)
+      .also {
+        logger.debug { "Writing summary totalChunkCount: $totalChunkCount for scrapeID: ${scrapeResults.scrapeId}" }
+        chunkQueue.send(it.toProto())
+      }
+    scrapeResults.chunked = true
+    releaseStream()
+  }
+
+  // Tells the proxy to give up on a scrape whose header has already been sent
+  suspend fun abort(reason: String) {
+    if (headerSent) {
+      newScrapeResponseSummary(scrapeResults.scrapeId, totalChunkCount, totalByteCount, checksum, reason)
+        .also { chunkQueue.send(it.toProto()) }
+      scrapeResults.chunked = true
+      releaseStream()
+    }
+  }
+
+  // Called when the scrape ends, including when it is cancelled
+  fun releaseStream() {
+    if (headerSent && !streamReleased) {
+      streamReleased = true
+      chunkQueue.close()
+      chunkedStreams.release(stream, streamByteCount)
+    }
+  }
+
+  private suspend fun sendFullChunks(finished: Boolean = false) {
+    if (!headerSent) {
+      val large = zippedContent.size() >= smallScrapeMaxBytes
+      if (!large && !finished)
+        return
+      sendHeader(large)
+    }
+
+    while (zippedContent.size() >= chunkContentSize)
+      sendChunk(zippedContent.takeChunk(chunkContentSize))
+  }
+
+  private suspend fun sendHeader(large: Boolean) {
+    stream = chunkedStreams.assign(large)
+    chunkQueue = chunkedStreams.open(stream)
+    // Set before sending, so the stream is still released if the send is cancelled
+    headerSent = true
+    logger.debug { "Writing header for scrapeId: ${scrapeResults.scrapeId} on stream $stream" }
+    chunkQueue.send(scrapeResults.toScrapeResponseHeader().toProto())
+  }
+
+  private suspend fun sendChunk(bytes: ByteArray) {
+    val scrapeId = scrapeResults.scrapeId
+    totalChunkCount++
+    totalByteCount += bytes.size
+    streamByteCount += bytes.size
+    chunkedStreams.addBytes(stream, bytes.size)
+    checksum.update(bytes, 0, bytes.size)
+
+    newScrapeResponseChunk(scrapeId, totalChunkCount, bytes.size, checksum, bytes)
+      .also {
+        logger.debug { "Writing chunk $totalChunkCount for scrapeId: $scrapeId" }
+        chunkQueue.send(it.toProto())
+      }
+  }
+
+  // Reuses its backing array, so compressed content is only copied once when a chunk is taken
+  private class ChunkBuffer(size: Int) : ByteArrayOutputStream(size) {
+    fun takeChunk(length: Int): ByteArray {
+      val chunk = buf.copyOf(length)
+      System.arraycopy(buf, length, buf, 0, count - length)
+      count -= length
+      return chunk
+    }
+  }
+
+  companion object : KLogging() {
+    private const val READ_BUFFER_SIZE = 8192
+    private const val READ_BUFFER_POOL_SIZE = 64
+    private const val SMALL_SCRAPE_CHUNK_COUNT = 4
+
+    // Read buffers are reused across scrapes rather than allocated for each one
+    private val readBuffers = ArrayBlockingQueue<ByteArray>(READ_BUFFER_POOL_SIZE)
+  }
+}
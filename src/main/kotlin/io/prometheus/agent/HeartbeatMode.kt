@@ -0,0 +1,34 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+// How the agent tells the proxy it is still alive when it has sent nothing else
+internal enum class HeartbeatMode {
+  // A separate sendHeartBeat call
+  RPC,
+
+  // A heartbeat message on the response stream
+  STREAM;
+
+  companion object {
+    fun fromConfig(value: String) =
+      values().firstOrNull { it.name.equals(value, ignoreCase = true) }
+        ?: throw IllegalArgumentException("Invalid heartbeat mode: $value")
+  }
+}
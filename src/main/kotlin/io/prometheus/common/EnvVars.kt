@@ -38,6 +38,8 @@ enum class EnvVars {
   CONSOLIDATED,
   SCRAPE_TIMEOUT_SECS,
   SCRAPE_MAX_RETRIES,
+  SCRAPE_MAX_CONCURRENCY,
+  SCRAPE_MAX_CONCURRENCY_PER_HOST,
   CHUNK_CONTENT_SIZE_KBS,
   MIN_GZIP_SIZE_BYTES,
   TRUST_ALL_X509_CERTIFICATES,
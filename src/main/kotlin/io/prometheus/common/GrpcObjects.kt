@@ -19,11 +19,14 @@
 package io.prometheus.common
 
 import com.google.protobuf.ByteString
+import com.google.protobuf.UnsafeByteOperations
 import io.prometheus.grpc.krotodc.ChunkData
 import io.prometheus.grpc.krotodc.ChunkedScrapeResponse
 import io.prometheus.grpc.krotodc.ChunkedScrapeResponse.ChunkOneOf.Chunk
 import io.prometheus.grpc.krotodc.ChunkedScrapeResponse.ChunkOneOf.Summary
+import io.prometheus.grpc.krotodc.ScrapeRequest
 import io.prometheus.grpc.krotodc.ScrapeResponse
+import io.prometheus.grpc.krotodc.ScrapeResponse.ContentOneOf.ContentAsBytes
 import io.prometheus.grpc.krotodc.ScrapeResponse.ContentOneOf.ContentAsText
 import io.prometheus.grpc.krotodc.ScrapeResponse.ContentOneOf.ContentAsZipped
 import io.prometheus.grpc.krotodc.SummaryData
@@ -42,12 +45,29 @@ internal object GrpcObjects {
       failureReason = failureReason,
       url = url
     ).also { results ->
-      if (zipped)
-        results.contentAsZipped = (contentOneOf as ContentAsZipped).contentAsZipped.toByteArray()
-      else
-        results.contentAsText = (contentOneOf as ContentAsText).contentAsText
+      when (val content = contentOneOf) {
+        // ByteStrings are immutable, so they are shared rather than copied
+        is ContentAsZipped -> results.contentAsZipped = content.contentAsZipped
+        is ContentAsBytes -> results.contentAsBytes = content.contentAsBytes
+        // Sent by agents that predate content_as_bytes
+        is ContentAsText -> results.contentAsBytes = ByteString.copyFromUtf8(content.contentAsText)
+        else -> {}
+      }
     }
 
+  fun newScrapeCancellation(agentId: String, scrapeId: Long) =
+    ScrapeRequest(
+      agentId = agentId,
+      scrapeId = scrapeId,
+      cancelScrape = true
+    )
+
+  fun newStreamHeartBeat(agentId: String) =
+    ScrapeResponse(
+      agentId = agentId,
+      heartbeat = true
+    )
+
   fun newScrapeResponseChunk(
     scrapeId: Long,
     totalChunkCount: Int,
@@ -62,7 +82,8 @@ internal object GrpcObjects {
           chunkCount = totalChunkCount,
           chunkByteCount = readByteCount,
           chunkChecksum = checksum.value,
-          chunkBytes = ByteString.copyFrom(buffer),
+          // The buffer is owned by the chunk and never modified, so it is wrapped rather than copied
+          chunkBytes = UnsafeByteOperations.unsafeWrap(buffer, 0, readByteCount),
         )
       )
     )
@@ -71,7 +92,8 @@ internal object GrpcObjects {
     scrapeId: Long,
     totalChunkCount: Int,
     totalByteCount: Int,
-    checksum: CRC32
+    checksum: CRC32,
+    failureReason: String = ""
   ) =
     ChunkedScrapeResponse(
       Summary(
@@ -80,6 +102,7 @@ internal object GrpcObjects {
           summaryChunkCount = totalChunkCount,
           summaryByteCount = totalByteCount,
           summaryChecksum = checksum.value,
+          summaryFailureReason = failureReason,
         )
       )
     )
@@ -18,14 +18,15 @@
 
 package io.prometheus.common
 
-import com.github.pambrose.common.util.EMPTY_BYTE_ARRAY
 import com.google.protobuf.ByteString
 import io.ktor.http.*
 import io.prometheus.grpc.krotodc.ChunkedScrapeResponse
 import io.prometheus.grpc.krotodc.ChunkedScrapeResponse.ChunkOneOf.Header
 import io.prometheus.grpc.krotodc.HeaderData
+import io.prometheus.grpc.krotodc.ScrapeResponse.ContentOneOf.ContentAsBytes
 import io.prometheus.grpc.krotodc.ScrapeResponse.ContentOneOf.ContentAsText
 import io.prometheus.grpc.krotodc.ScrapeResponse.ContentOneOf.ContentAsZipped
+import kotlinx.coroutines.channels.ReceiveChannel
 
 internal class ScrapeResults(
   val agentId: String,
@@ -34,17 +35,23 @@ internal class ScrapeResults(
   var statusCode: Int = HttpStatusCode.NotFound.value,
   var contentType: String = "",
   var zipped: Boolean = false,
-  var contentAsText: String = "",
-  var contentAsZipped: ByteArray = EMPTY_BYTE_ARRAY,
+  var contentAsBytes: ByteString = ByteString.EMPTY,
+  var contentAsZipped: ByteString = ByteString.EMPTY,
   var failureReason: String = "",
-  var url: String = ""
+  var url: String = "",
+  // Assigned on the proxy when gzipped chunks are streamed to the http client as they arrive
+  var contentChannel: ReceiveChannel<ByteString>? = null
 ) {
+  // Set on the agent when the content has already been sent to the proxy as chunks
+  var chunked = false
+
   fun setDebugInfo(url: String, failureReason: String = "") {
     this.url = url
     this.failureReason = failureReason
   }
 
-  fun toScrapeResponse() =
+  // Proxies that predate content_as_bytes only decode content_as_text
+  fun toScrapeResponse(contentAsBytesAccepted: Boolean) =
     io.prometheus.grpc.krotodc.ScrapeResponse(
       agentId = agentId,
       scrapeId = scrapeId,
@@ -53,10 +60,11 @@ internal class ScrapeResults(
       contentType = contentType,
       zipped = zipped,
       contentOneOf =
-      if (zipped)
-        ContentAsZipped(ByteString.copyFrom(contentAsZipped))
-      else
-        ContentAsText(contentAsText),
+      when {
+        zipped -> ContentAsZipped(contentAsZipped)
+        contentAsBytesAccepted -> ContentAsBytes(contentAsBytes)
+        else -> ContentAsText(contentAsBytes.toStringUtf8())
+      },
       failureReason = failureReason,
       url = url
     )
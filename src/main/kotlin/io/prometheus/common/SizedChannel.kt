@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ChannelIterator
+import kotlinx.coroutines.channels.ChannelResult
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.consumeAsFlow
+import kotlinx.coroutines.flow.onEach
+import java.util.concurrent.atomic.AtomicInteger
+
+// A channel that keeps count of its buffered elements, which Channel does not expose, so its depth can be reported.
+// A capacity of 0 or less is unlimited, and a full channel suspends its senders.
+// Only the operations that keep the count are exposed, so select clauses and the like cannot bypass it.
+internal class SizedChannel<E>(capacity: Int) {
+  private val channel = Channel<E>(if (capacity > 0) capacity else Channel.UNLIMITED)
+  private val depth = AtomicInteger(0)
+
+  // A cancelled channel drops its buffered elements without them being received, so it reports none
+  val size: Int
+    get() = if (channel.isClosedForReceive) 0 else depth.get()
+
+  // Counted before the element is queued, so a fast receiver cannot take the count below zero
+  suspend fun send(element: E) {
+    depth.incrementAndGet()
+    try {
+      channel.send(element)
+    } catch (e: Throwable) {
+      depth.decrementAndGet()
+      throw e
+    }
+  }
+
+  fun trySend(element: E): ChannelResult<Unit> {
+    depth.incrementAndGet()
+    return channel.trySend(element).also { if (!it.isSuccess) depth.decrementAndGet() }
+  }
+
+  suspend fun receiveCatching(): ChannelResult<E> =
+    channel.receiveCatching().also { if (it.isSuccess) depth.decrementAndGet() }
+
+  fun tryReceive(): ChannelResult<E> =
+    channel.tryReceive().also { if (it.isSuccess) depth.decrementAndGet() }
+
+  // Used by for loops
+  operator fun iterator(): ChannelIterator<E> =
+    object : ChannelIterator<E> {
+      private val iterator = channel.iterator()
+
+      override suspend fun hasNext() = iterator.hasNext()
+
+      override fun next() = iterator.next().also { depth.decrementAndGet() }
+    }
+
+  fun consumeAsFlow(): Flow<E> = channel.consumeAsFlow().onEach { depth.decrementAndGet() }
+
+  fun close() = channel.close()
+
+  fun cancel() = channel.cancel()
+}
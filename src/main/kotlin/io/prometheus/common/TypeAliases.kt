@@ -19,4 +19,5 @@ package io.prometheus.common
 @Suppress("unused")
 object TypeAliases
 
-internal typealias ScrapeRequestAction = suspend () -> ScrapeResults
\ No newline at end of file
+// Returns null if the proxy cancelled the scrape
+internal typealias ScrapeRequestAction = suspend () -> ScrapeResults?
\ No newline at end of file
@@ -21,11 +21,17 @@ package io.prometheus.common
 import com.beust.jcommander.IParameterValidator
 import com.beust.jcommander.JCommander
 import com.github.pambrose.common.util.Version.Companion.versionDesc
+import com.google.protobuf.ByteString
 import io.prometheus.Proxy
+import java.util.zip.GZIPInputStream
 import kotlin.system.exitProcess
 
 internal fun getVersionDesc(asJson: Boolean = false): String = Proxy::class.versionDesc(asJson)
 
+// Scrape content is carried as bytes end-to-end, so it is never decoded into a String.
+// readFrom() builds a rope of blocks, so the inflated content is never copied into one large array.
+internal fun ByteString.gunzip(): ByteString = GZIPInputStream(newInput()).use { ByteString.readFrom(it) }
+
 internal class VersionValidator : IParameterValidator {
   override fun validate(name: String, value: String) {
     val console = JCommander().console
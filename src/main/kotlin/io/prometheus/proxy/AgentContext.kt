@@ -21,24 +21,56 @@ package io.prometheus.proxy
 import com.github.pambrose.common.delegate.AtomicDelegates.atomicBoolean
 import com.github.pambrose.common.delegate.AtomicDelegates.nonNullableReference
 import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
+import io.prometheus.agent.RequestFailureException
+import io.prometheus.common.GrpcObjects.newScrapeCancellation
 import io.prometheus.grpc.RegisterAgentRequest
+import io.prometheus.grpc.ScrapeRequest
+import io.prometheus.grpc.krotodc.scraperequest.toProto
+import io.prometheus.proxy.ScrapeBacklogOverflowPolicy.DROP_OLDEST
+import io.prometheus.proxy.ScrapeBacklogOverflowPolicy.SUSPEND
+import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import kotlinx.coroutines.selects.select
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
+import kotlin.time.Duration
 import kotlin.time.TimeMark
 import kotlin.time.TimeSource.Monotonic
 
-internal class AgentContext(private val remoteAddr: String) {
+internal class AgentContext(
+  private val remoteAddr: String,
+  private val backlogCapacity: Int = Channel.UNLIMITED,
+  private val overflowPolicy: ScrapeBacklogOverflowPolicy = SUSPEND,
+) {
 
   val agentId = AGENT_ID_GENERATOR.incrementAndGet().toString()
 
-  private val scrapeRequestChannel = Channel<ScrapeRequestWrapper>(Channel.UNLIMITED)
   private val channelBacklogSize = AtomicInteger(0)
+  private val scrapeRequestChannel =
+    if (overflowPolicy == DROP_OLDEST)
+      Channel<ScrapeRequestWrapper>(backlogCapacity, BufferOverflow.DROP_OLDEST) { dropped ->
+        // Also called for requests left in the channel when it is cancelled
+        channelBacklogSize.decrementAndGet()
+        dropped.markFailed(ScrapeBacklogFullException("Scrape request dropped from full backlog of agent $agentId"))
+      }
+    else
+      Channel(backlogCapacity)
+
+  // Scrape ids the proxy gave up on after sending them to the agent, which are sent ahead of new requests.
+  // It is never closed, so select() in readScrapeRequest() ends when scrapeRequestChannel is closed.
+  private val cancelledScrapeIdChannel = Channel<Long>(Channel.UNLIMITED)
+
+  // Scrape requests with a waiting http request, failed en masse if the agent goes away
+  private val outstandingScrapeRequests = ConcurrentHashMap.newKeySet<ScrapeRequestWrapper>()
 
   private val clock = Monotonic
   private var lastActivityTimeMark: TimeMark by nonNullableReference(clock.markNow())
   private var lastRequestTimeMark: TimeMark by nonNullableReference(clock.markNow())
   private var valid by atomicBoolean(true)
+  private var invalidateTimeMark: TimeMark by nonNullableReference(clock.markNow())
 
   private var launchId: String by nonNullableReference("Unassigned")
   var hostName: String by nonNullableReference("Unassigned")
@@ -47,6 +79,15 @@ internal class AgentContext(private val remoteAddr: String) {
     private set
   var consolidated: Boolean by nonNullableReference(false)
     private set
+  var compactScrapeRequests: Boolean by nonNullableReference(false)
+    private set
+
+  // Map path to the path_id the agent registered it with. The low 32 bits of an id are a slot, which is
+  // reused once its path is removed, and the high bits are a generation that is bumped on each reuse.
+  // The agent's index stays as small as its live paths, and a stale request cannot resolve to a different path.
+  private val pathIds = ConcurrentHashMap<String, Long>()
+  private val freePathIds = ArrayDeque<Long>()
+  private var nextPathSlot = 1L
 
   internal val desc: String
     get() = if (consolidated) "consolidated " else ""
@@ -60,6 +101,9 @@ internal class AgentContext(private val remoteAddr: String) {
   val scrapeRequestBacklogSize: Int
     get() = channelBacklogSize.get()
 
+  val invalidatedDuration
+    get() = invalidateTimeMark.elapsedNow()
+
   init {
     markActivityTime(true)
   }
@@ -69,26 +113,104 @@ internal class AgentContext(private val remoteAddr: String) {
     agentName = request.agentName
     hostName = request.hostName
     consolidated = request.consolidated
+    compactScrapeRequests = request.compactScrapeRequests
   }
 
-  suspend fun writeScrapeRequest(scrapeRequest: ScrapeRequestWrapper) {
-    scrapeRequestChannel.send(scrapeRequest)
-    channelBacklogSize.incrementAndGet()
+  @Synchronized
+  fun assignPathId(path: String): Long {
+    removePathId(path)
+    // Freed slots are reused oldest first, which leaves the most time for stale requests to drain
+    return (freePathIds.removeFirstOrNull() ?: nextPathSlot++).also { pathIds[path] = it }
+  }
+
+  @Synchronized
+  fun removePathId(path: String) {
+    pathIds.remove(path)
+      ?.also { id ->
+        val generation = ((id ushr 32) + 1) and MAX_PATH_GENERATION
+        freePathIds.addLast((generation shl 32) or (id and PATH_SLOT_MASK))
+      }
   }
 
-  suspend fun readScrapeRequest(): ScrapeRequestWrapper? =
-    scrapeRequestChannel.receiveCatching().getOrNull()
-      ?.apply {
+  // Returns 0 if the path was not registered by this agent
+  fun pathId(path: String) = pathIds[path] ?: 0L
+
+  // Throws ScrapeBacklogFullException if the backlog stays full, based on the overflow policy
+  suspend fun writeScrapeRequest(scrapeRequest: ScrapeRequestWrapper, timeout: Duration) {
+    outstandingScrapeRequests += scrapeRequest
+    // Check after adding to the set, so an invalidate() racing with this call cannot miss the request
+    if (!valid) {
+      scrapeRequest.markFailed(RequestFailureException("Agent $agentId disconnected"))
+      return
+    }
+
+    // Counted before it is queued, so a fast reader cannot take the count below zero
+    channelBacklogSize.incrementAndGet()
+    val queued =
+      try {
+        if (overflowPolicy == SUSPEND)
+          withTimeoutOrNull(timeout) { scrapeRequestChannel.send(scrapeRequest) } != null
+        else
+          scrapeRequestChannel.trySend(scrapeRequest)
+            .also { if (it.isClosed) throw ClosedSendChannelException("Agent $agentId disconnected") }
+            .isSuccess
+      } catch (e: ClosedSendChannelException) {
+        // The agent was invalidated after the check above, which has already failed the request
         channelBacklogSize.decrementAndGet()
+        return
       }
 
+    if (!queued) {
+      channelBacklogSize.decrementAndGet()
+      throw ScrapeBacklogFullException("Scrape request backlog of agent $agentId is full")
+    }
+  }
+
+  // Returns true if the agent is told to cancel the scrape, because it already has the request
+  fun removeScrapeRequest(scrapeRequest: ScrapeRequestWrapper): Boolean {
+    outstandingScrapeRequests -= scrapeRequest
+    return scrapeRequest.abandon() && valid && cancelledScrapeIdChannel.trySend(scrapeRequest.scrapeId).isSuccess
+  }
+
+  // Returns the next scrape request or cancellation for the agent, or null if the next
+  // request was abandoned while it was queued or the agent is gone
+  suspend fun readScrapeRequest(): ScrapeRequest? =
+    select<ScrapeRequest?> {
+      cancelledScrapeIdChannel.onReceive { scrapeId ->
+        newScrapeCancellation(agentId, scrapeId).toProto()
+      }
+      scrapeRequestChannel.onReceiveCatching { result ->
+        result.getOrNull()
+          ?.let { scrapeRequest ->
+            channelBacklogSize.decrementAndGet()
+            if (scrapeRequest.markSent()) scrapeRequest.toScrapeRequestWithDeadline() else null
+          }
+      }
+    }
+
+  // Non-suspending form of readScrapeRequest(), used to fill a batch with whatever is already queued.
+  // Returns null if nothing is queued.
+  fun tryReadScrapeRequest(): ScrapeRequest? {
+    cancelledScrapeIdChannel.tryReceive().getOrNull()
+      ?.also { return newScrapeCancellation(agentId, it).toProto() }
+
+    while (true) {
+      val scrapeRequest = scrapeRequestChannel.tryReceive().getOrNull() ?: return null
+      channelBacklogSize.decrementAndGet()
+      if (scrapeRequest.markSent())
+        return scrapeRequest.toScrapeRequestWithDeadline()
+    }
+  }
+
   fun isValid() = valid && !scrapeRequestChannel.isClosedForReceive
 
   fun isNotValid() = !isValid()
 
   fun invalidate() {
+    invalidateTimeMark = clock.markNow()
     valid = false
     scrapeRequestChannel.close()
+    outstandingScrapeRequests.forEach { it.markFailed(RequestFailureException("Agent $agentId disconnected")) }
   }
 
   fun markActivityTime(isRequest: Boolean) {
@@ -122,5 +244,7 @@ internal class AgentContext(private val remoteAddr: String) {
 
   companion object {
     private val AGENT_ID_GENERATOR = AtomicLong(0L)
+    private const val PATH_SLOT_MASK = 0xFFFF_FFFFL
+    private const val MAX_PATH_GENERATION = 0x7FFF_FFFFL
   }
 }
\ No newline at end of file
@@ -21,11 +21,14 @@ package io.prometheus.proxy
 import com.github.pambrose.common.concurrent.GenericExecutionThreadService
 import com.github.pambrose.common.concurrent.genericServiceListener
 import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
-import com.github.pambrose.common.util.sleep
 import com.google.common.util.concurrent.MoreExecutors
 import io.prometheus.Proxy
 import io.prometheus.common.ConfigVals
 import mu.two.KLogging
+import java.util.concurrent.DelayQueue
+import java.util.concurrent.Delayed
+import java.util.concurrent.TimeUnit
+import kotlin.time.Duration
 import kotlin.time.Duration.Companion.seconds
 
 internal class AgentContextCleanupService(
@@ -39,20 +42,57 @@ internal class AgentContextCleanupService(
     initBlock(this)
   }
 
+  private val maxAgentInactivityTime = configVals.maxAgentInactivitySecs.seconds
+
+  // Agents ordered by when they could next be evicted. markActivityTime() does not touch the queue:
+  // a deadline that comes due for a recently active agent is re-armed from its last activity time.
+  private val evictionDeadlines = DelayQueue<EvictionDeadline>()
+
+  private class EvictionDeadline(val agentContext: AgentContext, delay: Duration) : Delayed {
+    private val deadlineNanos = System.nanoTime() + delay.inWholeNanoseconds
+
+    override fun getDelay(unit: TimeUnit) = unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)
+
+    override fun compareTo(other: Delayed) = deadlineNanos.compareTo((other as EvictionDeadline).deadlineNanos)
+  }
+
+  fun scheduleEviction(agentContext: AgentContext, delay: Duration = maxAgentInactivityTime) {
+    evictionDeadlines += EvictionDeadline(agentContext, delay)
+  }
+
   override fun run() {
-    val maxAgentInactivityTime = configVals.maxAgentInactivitySecs.seconds
+    // The pause only bounds how long a shutdown waits, deadlines fire as they come due
     val pauseTime = configVals.staleAgentCheckPauseSecs.seconds
     while (isRunning) {
-      proxy.agentContextManager.agentContextMap
-        .forEach { (agentId, agentContext) ->
+      val first = evictionDeadlines.poll(pauseTime.inWholeMilliseconds, TimeUnit.MILLISECONDS) ?: continue
+      val due = mutableListOf(first).apply { while (true) add(evictionDeadlines.poll() ?: break) }
+
+      due
+        .mapNotNull { deadline ->
+          val agentContext = deadline.agentContext
           val inactivityDuration = agentContext.inactivityDuration
-          if (inactivityDuration > maxAgentInactivityTime) {
-            logger.info { "Evicting agentId ${agentContext.agentId} after $inactivityDuration (max $maxAgentInactivityTime) of inactivity: $agentContext" }
-            proxy.removeAgentContext(agentId, "Eviction")
-            proxy.metrics { agentEvictionCount.inc() }
+          when {
+            // Agent already disconnected
+            proxy.agentContextManager.getAgentContext(agentContext.agentId) !== agentContext -> null
+
+            inactivityDuration > maxAgentInactivityTime -> {
+              logger.info { "Evicting agentId ${agentContext.agentId} after $inactivityDuration (max $maxAgentInactivityTime) of inactivity: $agentContext" }
+              agentContext.agentId
+            }
+
+            else -> {
+              scheduleEviction(agentContext, maxAgentInactivityTime - inactivityDuration)
+              null
+            }
+          }
+        }
+        .also { agentIds ->
+          // Evict in one pass, so the path table is only republished once
+          if (agentIds.isNotEmpty()) {
+            proxy.removeAgentContexts(agentIds, "Eviction")
+            proxy.metrics { agentEvictionCount.inc(agentIds.size.toDouble()) }
           }
         }
-      sleep(pauseTime)
     }
   }
 
@@ -20,8 +20,13 @@ package io.prometheus.proxy
 
 import com.github.pambrose.common.util.isNull
 import com.google.common.collect.Maps.newConcurrentMap
+import io.prometheus.grpc.ChunkedScrapeResponse
+import kotlinx.coroutines.CoroutineScope
 import mu.two.KLogging
 import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.seconds
 
 internal class AgentContextManager(private val isTestMode: Boolean) {
   // Map agent_id to AgentContext
@@ -29,11 +34,31 @@ internal class AgentContextManager(private val isTestMode: Boolean) {
   val agentContextSize: Int get() = agentContextMap.size
 
   // Map scrape_id to ChunkedContext
-  val chunkedContextMap: ConcurrentMap<Long, ChunkedContext> = newConcurrentMap()
+  val chunkedContextMap = ConcurrentLongMap<ChunkedContext>()
   val chunkedContextSize: Int get() = chunkedContextMap.size
 
   val totalAgentScrapeRequestBacklogSize: Int get() = agentContextMap.values.sumOf { it.scrapeRequestBacklogSize }
 
+  // Bytes of chunked content received for scrapes that have not completed yet.
+  // Kept as a running total, so admission checks do not walk every open context.
+  private val chunkedByteCount = AtomicLong(0)
+  val totalChunkedByteCount: Long get() = chunkedByteCount.get()
+
+  fun newChunkedContext(
+    response: ChunkedScrapeResponse,
+    streaming: Boolean,
+    streamingCapacity: Int = 16,
+    streamingOverflowWait: Duration = 5.seconds,
+    drainScope: CoroutineScope? = null,
+  ) = ChunkedContext(response, streaming, chunkedByteCount, streamingCapacity, streamingOverflowWait, drainScope)
+
+  fun addChunkedContext(scrapeId: Long, context: ChunkedContext) {
+    chunkedContextMap.put(scrapeId, context)?.release()
+  }
+
+  // Removed contexts stop counting towards totalChunkedByteCount
+  fun removeChunkedContext(scrapeId: Long): ChunkedContext? = chunkedContextMap.remove(scrapeId)?.also { it.release() }
+
   fun addAgentContext(agentContext: AgentContext): AgentContext? {
     logger.info { "Registering agentId: ${agentContext.agentId}" }
     return agentContextMap.put(agentContext.agentId, agentContext)
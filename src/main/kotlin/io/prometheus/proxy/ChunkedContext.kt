@@ -18,20 +18,52 @@
 
 package io.prometheus.proxy
 
+import com.google.protobuf.ByteString
+import io.ktor.http.*
+import io.prometheus.agent.RequestFailureException
 import io.prometheus.common.ScrapeResults
 import io.prometheus.grpc.ChunkedScrapeResponse
-import java.io.ByteArrayOutputStream
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.atomic.AtomicLong
 import java.util.zip.CRC32
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.seconds
 
-internal class ChunkedContext(response: ChunkedScrapeResponse) {
+internal class ChunkedContext(
+  response: ChunkedScrapeResponse,
+  val streaming: Boolean,
+  private val bufferedByteCount: AtomicLong = AtomicLong(0),
+  private val streamingCapacity: Int = 16,
+  private val streamingOverflowWait: Duration = 5.seconds,
+  // Runs the coroutines that feed streaming clients, and is cancelled with the chunked stream
+  private val drainScope: CoroutineScope? = null,
+) {
   private val checksum = CRC32()
-  private val baos = ByteArrayOutputStream()
+  // Chunks are concatenated into a rope, so they are never copied into one large array
+  private var content = ByteString.EMPTY
+
+  // Bounded, so the proxy does not buffer the whole payload for a slow http client. Chunks the client has
+  // no room for wait in pendingChunks and are sent by a drain coroutine, so a slow client holds up only its
+  // own scrape rather than every scrape on the chunked stream. A client that stays full for
+  // streamingOverflowWait, or that has another streamingCapacity chunks pending, has its response aborted.
+  private val contentChannel = if (streaming) Channel<ByteString>(streamingCapacity) else null
+  private val pendingChunks = ArrayDeque<ByteString>()
+  private var draining = false
+  private var summaryApplied = false
 
   var totalChunkCount = 0
     private set
   var totalByteCount = 0
     private set
 
+  // Set once the context is removed from the chunked context map, after which its bytes are no longer counted
+  private var released = false
+
   val scrapeResults =
     response.header.run {
       ScrapeResults(
@@ -43,25 +75,140 @@ internal class ChunkedContext(response: ChunkedScrapeResponse) {
         failureReason = headerFailureReason,
         url = headerUrl,
         contentType = headerContentType
-      )
+      ).also { it.contentChannel = contentChannel }
     }
 
-  fun applyChunk(data: ByteArray, chunkByteCount: Int, chunkCount: Int, chunkChecksum: Long) {
+  fun applyChunk(data: ByteString, chunkByteCount: Int, chunkCount: Int, chunkChecksum: Long) {
     totalChunkCount++
-    totalByteCount += chunkByteCount
-    checksum.update(data, 0, data.size)
-    baos.write(data, 0, chunkByteCount)
+    countBytes(chunkByteCount)
+    data.asReadOnlyByteBufferList().forEach { checksum.update(it) }
+
+    checkOrAbort(totalChunkCount == chunkCount) { "Chunk count mismatch: $totalChunkCount != $chunkCount" }
+    checkOrAbort(checksum.value == chunkChecksum) { "Chunk checksum mismatch for chunk $chunkCount" }
+
+    // Older agents send a full buffer with a shorter final chunk
+    val chunk = if (chunkByteCount == data.size()) data else data.substring(0, chunkByteCount)
+    if (contentChannel == null)
+      content = content.concat(chunk)
+    else
+      queueChunk(contentChannel, chunk)
+  }
+
+  // Never suspends, so the chunked stream keeps moving for the other scrapes
+  private fun queueChunk(channel: Channel<ByteString>, chunk: ByteString) {
+    var overflowed = false
+    var startDrain = false
+    synchronized(this) {
+      // A closed channel means the http client has gone away or the response was aborted, so the chunk is dropped
+      if (channel.isClosedForSend || (pendingChunks.isEmpty() && channel.trySend(chunk).isSuccess))
+        return
+      if (pendingChunks.size >= streamingCapacity) {
+        overflowed = true
+      } else {
+        pendingChunks.addLast(chunk)
+        startDrain = !draining
+        draining = true
+      }
+    }
 
-    check(totalChunkCount == chunkCount)
-    check(checksum.value == chunkChecksum)
+    if (overflowed)
+      abort(IllegalStateException("Streaming client fell more than ${streamingCapacity * 2} chunks behind"))
+    else if (startDrain)
+      checkNotNull(drainScope) { "Streaming requires a drain scope" }.launch { drain(channel) }
+  }
+
+  private suspend fun drain(channel: Channel<ByteString>) {
+    try {
+      while (true) {
+        val chunk =
+          synchronized(this) {
+            pendingChunks.firstOrNull()
+              ?: run {
+                draining = false
+                // The summary arrived while chunks were pending, so the response ends now
+                if (summaryApplied)
+                  channel.close()
+                return
+              }
+          }
+
+        val sent =
+          try {
+            withTimeoutOrNull(streamingOverflowWait) { channel.send(chunk) } != null
+          } catch (e: ClosedSendChannelException) {
+            // The http client has gone away, so the rest of its content is dropped
+            abort(e)
+            return
+          }
+
+        if (!sent) {
+          abort(IllegalStateException("Streaming client was full for $streamingOverflowWait"))
+          return
+        }
+        synchronized(this) { pendingChunks.removeFirstOrNull() }
+      }
+    } catch (e: CancellationException) {
+      // The chunked stream ended, so the response cannot be completed
+      abort(IllegalStateException("Chunked stream ended while content was pending"))
+      throw e
+    }
   }
 
   fun applySummary(summaryChunkCount: Int, summaryByteCount: Int, summaryChecksum: Long) {
-    check(totalChunkCount == summaryChunkCount)
-    check(totalByteCount == summaryByteCount)
-    check(checksum.value == summaryChecksum)
+    checkOrAbort(totalChunkCount == summaryChunkCount) { "Summary chunk count mismatch: $totalChunkCount != $summaryChunkCount" }
+    checkOrAbort(totalByteCount == summaryByteCount) { "Summary byte count mismatch: $totalByteCount != $summaryByteCount" }
+    checkOrAbort(checksum.value == summaryChecksum) { "Summary checksum mismatch" }
 
-    baos.flush()
-    scrapeResults.contentAsZipped = baos.toByteArray()
+    if (!streaming)
+      scrapeResults.contentAsZipped = content
+    synchronized(this) {
+      summaryApplied = true
+      // Otherwise closed by the drain coroutine once the pending chunks are sent
+      if (!draining)
+        contentChannel?.close()
+    }
   }
-}
\ No newline at end of file
+
+  // The agent failed partway through reading the content
+  fun applyFailure(failureReason: String) {
+    scrapeResults.apply {
+      validResponse = false
+      statusCode = HttpStatusCode.ServiceUnavailable.value
+      this.failureReason = failureReason
+    }
+    abort(RequestFailureException("Agent failed reading content: $failureReason"))
+  }
+
+  @Synchronized
+  private fun countBytes(byteCount: Int) {
+    totalByteCount += byteCount
+    if (!released)
+      bufferedByteCount.addAndGet(byteCount.toLong())
+  }
+
+  // A chunk may still be applied after a cancelled scrape's context is removed, so the flag is checked under the lock
+  @Synchronized
+  fun release() {
+    if (!released) {
+      released = true
+      bufferedByteCount.addAndGet(-totalByteCount.toLong())
+    }
+  }
+
+  // Closing the channel with a cause aborts the http response that is streaming the content
+  fun abort(cause: Throwable) {
+    synchronized(this) { pendingChunks.clear() }
+    contentChannel?.close(cause)
+  }
+
+  private fun checkOrAbort(value: Boolean, lazyMessage: () -> String) {
+    if (!value) {
+      val e = ChunkValidationException(lazyMessage())
+      abort(e)
+      throw e
+    }
+  }
+}
+
+// Thrown when a chunk or summary does not match what was received for its scrape
+internal class ChunkValidationException(message: String) : IllegalStateException(message)
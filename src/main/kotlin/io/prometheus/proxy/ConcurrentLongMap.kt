@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import java.util.concurrent.atomic.AtomicInteger
+
+// A concurrent map keyed by primitive longs, so scrape ids are never boxed on the scrape path.
+// Keys are spread across independently locked stripes, each an open-addressing table with linear probing.
+internal class ConcurrentLongMap<V : Any>(stripeCount: Int = 16, initialStripeCapacity: Int = 16) {
+  private val stripeMask = Integer.highestOneBit(stripeCount.coerceAtLeast(1)) - 1
+  private val stripes = Array(stripeMask + 1) { Stripe<V>(initialStripeCapacity) }
+  private val count = AtomicInteger(0)
+
+  val size: Int
+    get() = count.get()
+
+  // A snapshot, which is not consistent across stripes
+  val values: List<V>
+    get() = stripes.flatMap { it.values() }
+
+  operator fun get(key: Long): V? = stripe(key).get(key)
+
+  operator fun set(key: Long, value: V) {
+    put(key, value)
+  }
+
+  fun put(key: Long, value: V): V? =
+    stripe(key).put(key, value).also { if (it == null) count.incrementAndGet() }
+
+  fun remove(key: Long): V? =
+    stripe(key).remove(key)?.also { count.decrementAndGet() }
+
+  private fun stripe(key: Long) = stripes[hash(key).toInt() and stripeMask]
+
+  private class Stripe<V : Any>(initialCapacity: Int) {
+    private var keys = LongArray(Integer.highestOneBit((initialCapacity - 1).coerceAtLeast(1)) shl 1)
+    // A null value marks an empty slot, so every key, including 0, can be stored
+    private var vals = arrayOfNulls<Any>(keys.size)
+    private var size = 0
+
+    private val mask get() = keys.size - 1
+
+    // The low bits of the hash pick the stripe, so the high bits pick the slot
+    private fun slot(key: Long) = (hash(key) ushr 32).toInt() and mask
+
+    @Synchronized
+    fun get(key: Long): V? {
+      var i = slot(key)
+      while (true) {
+        val value = vals[i] ?: return null
+        if (keys[i] == key)
+          @Suppress("UNCHECKED_CAST")
+          return value as V
+        i = (i + 1) and mask
+      }
+    }
+
+    @Synchronized
+    fun put(key: Long, value: V): V? {
+      var i = slot(key)
+      while (true) {
+        val current = vals[i]
+        if (current == null) {
+          keys[i] = key
+          vals[i] = value
+          if (++size > keys.size * 3 / 4)
+            resize(keys.size shl 1)
+          return null
+        }
+        if (keys[i] == key) {
+          vals[i] = value
+          @Suppress("UNCHECKED_CAST")
+          return current as V
+        }
+        i = (i + 1) and mask
+      }
+    }
+
+    @Synchronized
+    fun remove(key: Long): V? {
+      var i = slot(key)
+      while (true) {
+        val value = vals[i] ?: return null
+        if (keys[i] == key) {
+          deleteSlot(i)
+          @Suppress("UNCHECKED_CAST")
+          return value as V
+        }
+        i = (i + 1) and mask
+      }
+    }
+
+    @Synchronized
+    fun values(): List<V> =
+      @Suppress("UNCHECKED_CAST")
+      vals.filterNotNull().map { it as V }
+
+    // Shifts later entries of the probe sequence back into the gap, so no tombstones are needed
+    private fun deleteSlot(slot: Int) {
+      var gap = slot
+      var i = (gap + 1) and mask
+      while (true) {
+        vals[i] ?: break
+        val home = slot(keys[i])
+        // The entry can fill the gap if the gap lies between its home slot and its current slot
+        if (((i - home) and mask) >= ((i - gap) and mask)) {
+          keys[gap] = keys[i]
+          vals[gap] = vals[i]
+          gap = i
+        }
+        i = (i + 1) and mask
+      }
+      vals[gap] = null
+      size--
+    }
+
+    private fun resize(capacity: Int) {
+      val oldKeys = keys
+      val oldVals = vals
+      keys = LongArray(capacity)
+      vals = arrayOfNulls(capacity)
+      for (j in oldVals.indices) {
+        val value = oldVals[j] ?: continue
+        var i = slot(oldKeys[j])
+        while (vals[i] != null)
+          i = (i + 1) and mask
+        keys[i] = oldKeys[j]
+        vals[i] = value
+      }
+    }
+  }
+
+  companion object {
+    // The MurmurHash3 finalizer, so sequential scrape ids are spread evenly across stripes and slots
+    private fun hash(key: Long): Long {
+      var h = key
+      h = (h xor (h ushr 33)) * -0xae502812aa7333L
+      h = (h xor (h ushr 33)) * -0x3b314601e57a13adL
+      return h xor (h ushr 33)
+    }
+  }
+}
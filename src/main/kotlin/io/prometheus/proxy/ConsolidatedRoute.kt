@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.nanoseconds
+
+internal enum class ConsolidatedRoutingMode {
+  // Scrape every agent on the path and concatenate the results
+  FANOUT,
+
+  // Scrape the agent with the fewest queued scrape requests
+  LEAST_BACKLOG,
+
+  // Scrape the less backlogged of two randomly chosen agents
+  TWO_CHOICES,
+
+  // Scrape the agents in turn
+  ROUND_ROBIN;
+
+  companion object {
+    fun fromConfig(value: String) =
+      values().firstOrNull { it.name.equals(value, ignoreCase = true) }
+        ?: throw IllegalArgumentException("Invalid consolidated routing mode: $value")
+  }
+}
+
+// Routing state for a consolidated path. It is carried over when agents join or leave the path,
+// so the recent latencies used for hedging survive registration changes.
+internal class ConsolidatedRoute(val mode: ConsolidatedRoutingMode) {
+  private val nextIndex = AtomicInteger(0)
+  private val latencyNanos = LongArray(LATENCY_WINDOW_SIZE)
+  private var latencyCount = 0
+  private var latencyPos = 0
+
+  // Returns the agent to scrape, followed by the agent to hedge to, if the path has more than one.
+  // Disconnected agents are skipped unless no other agent is left.
+  fun candidates(agentContexts: List<AgentContext>): List<AgentContext> {
+    val valid = agentContexts.filter { it.isValid() }.ifEmpty { agentContexts }
+    if (valid.size <= 1 || mode == ConsolidatedRoutingMode.FANOUT)
+      return valid
+
+    return when (mode) {
+      // Rotated first, so idle agents with equal backlogs share the load
+      ConsolidatedRoutingMode.LEAST_BACKLOG -> rotated(valid).sortedBy { it.scrapeRequestBacklogSize }.take(2)
+      ConsolidatedRoutingMode.TWO_CHOICES -> valid.shuffled().take(2).sortedBy { it.scrapeRequestBacklogSize }
+      else -> rotated(valid).take(2)
+    }
+  }
+
+  private fun rotated(agentContexts: List<AgentContext>): List<AgentContext> {
+    val start = Math.floorMod(nextIndex.getAndIncrement(), agentContexts.size)
+    return agentContexts.drop(start) + agentContexts.take(start)
+  }
+
+  @Synchronized
+  fun addLatency(latency: Duration) {
+    latencyNanos[latencyPos] = latency.inWholeNanoseconds
+    latencyPos = (latencyPos + 1) % latencyNanos.size
+    if (latencyCount < latencyNanos.size)
+      latencyCount++
+  }
+
+  // Returns null until enough scrapes have completed to estimate the percentile
+  fun latencyPercentile(percentile: Int): Duration? {
+    val sorted =
+      synchronized(this) {
+        if (latencyCount < MIN_LATENCY_COUNT)
+          return null
+        latencyNanos.copyOf(latencyCount)
+      }.apply { sort() }
+    val index = ((percentile.coerceIn(1, 100) / 100.0) * sorted.size).toInt().coerceAtMost(sorted.size - 1)
+    return sorted[index].nanoseconds
+  }
+
+  companion object {
+    private const val LATENCY_WINDOW_SIZE = 128
+    private const val MIN_LATENCY_COUNT = 10
+  }
+}
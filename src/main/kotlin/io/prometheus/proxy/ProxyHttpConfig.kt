@@ -19,7 +19,7 @@ package io.prometheus.proxy
 import com.github.pambrose.common.util.isNotNull
 import com.github.pambrose.common.util.isNull
 import com.github.pambrose.common.util.simpleClassName
-import com.github.pambrose.common.util.unzip
+import com.google.protobuf.ByteString
 import io.ktor.http.*
 import io.ktor.http.ContentType.Application.Json
 import io.ktor.http.ContentType.Text.Plain
@@ -36,8 +36,21 @@ import io.ktor.server.plugins.statuspages.*
 import io.ktor.server.request.*
 import io.ktor.server.response.*
 import io.ktor.server.routing.*
+import io.ktor.utils.io.*
 import io.prometheus.Proxy
+import io.prometheus.agent.RequestFailureException
+import io.prometheus.common.ConfigVals
+import io.prometheus.common.gunzip
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.job
+import kotlinx.coroutines.selects.select
+import kotlinx.coroutines.withTimeoutOrNull
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
 import kotlinx.serialization.json.JsonPrimitive
@@ -47,11 +60,19 @@ import kotlinx.serialization.json.putJsonArray
 import kotlinx.serialization.json.putJsonObject
 import mu.two.KLogging
 import org.slf4j.event.Level
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.time.Duration
 import kotlin.time.Duration.Companion.milliseconds
 import kotlin.time.Duration.Companion.seconds
+import kotlin.time.DurationUnit.SECONDS
 
 internal object ProxyHttpConfig : KLogging() {
+  private val NEWLINE = ByteString.copyFromUtf8("\n")
+  private const val SCRAPE_TIMEOUT_HEADER = "X-Prometheus-Scrape-Timeout-Seconds"
+
+  // Results that mean the agent did not answer, as opposed to the exporter failing
+  private val STALE_UPDATE_MSGS = setOf("timed_out", "agent_disconnected", "invalid_agent_context", "backlog_full")
 
   fun Application.configServer(proxy: Proxy, isTestMode: Boolean) {
     install(DefaultHeaders) {
@@ -108,7 +129,8 @@ internal object ProxyHttpConfig : KLogging() {
 
         get(proxy.options.sdPath) {
           val json = buildJsonArray {
-            proxy.pathManager.allPaths.forEach { path ->
+            // Build the response from a single version of the routing table
+            proxy.pathManager.pathTable.paths.forEach { (path, agentContextInfo) ->
               addJsonObject {
                 putJsonArray("targets") {
                   add(JsonPrimitive(proxy.options.sdTargetPrefix))
@@ -116,9 +138,9 @@ internal object ProxyHttpConfig : KLogging() {
                 putJsonObject("labels") {
                   put("__metrics_path__", JsonPrimitive(path))
 
-                  val agentContexts = proxy.pathManager.getAgentContextInfo(path)?.agentContexts
-                  put("agentName", JsonPrimitive(agentContexts?.joinToString { it.agentName }))
-                  put("hostName", JsonPrimitive(agentContexts?.joinToString { it.hostName }))
+                  val agentContexts = agentContextInfo.agentContexts
+                  put("agentName", JsonPrimitive(agentContexts.joinToString { it.agentName }))
+                  put("hostName", JsonPrimitive(agentContexts.joinToString { it.hostName }))
                 }
               }
             }
@@ -141,6 +163,22 @@ internal object ProxyHttpConfig : KLogging() {
 
         logger.debug { "Servicing request for path: $path${if (queryParams.isNotEmpty()) " with query params $queryParams" else ""}" }
 
+        // If the call is cancelled, e.g., when the client disconnects, the scrapes it is waiting on are cancelled
+        // along with it, so submitScrapeRequest() removes their wrappers and tells the agents to stop
+        // The outcome is recorded once, since a failed respond is followed by the engine cancelling the call
+        val outcomeRecorded = AtomicBoolean(false)
+        fun recordOutcome(type: String) {
+          if (outcomeRecorded.compareAndSet(false, true))
+            updateScrapeRequests(proxy, type)
+        }
+
+        coroutineContext.job.invokeOnCompletion { cause ->
+          if (cause is CancellationException && proxy.isRunning && !outcomeRecorded.get()) {
+            logger.info { "Client aborted request for /$path" }
+            recordOutcome("client_aborted")
+          }
+        }
+
         when {
           !proxy.isRunning -> {
             logger.error { "Proxy stopped" }
@@ -161,12 +199,17 @@ internal object ProxyHttpConfig : KLogging() {
             responseResults.apply { updateMsg = "invalid_path"; statusCode = NotFound }
           }
 
-          proxyConfigVals.internal.blitz.enabled && path == proxyConfigVals.internal.blitz.path -> responseResults.contentText =
-            "42"
+          proxyConfigVals.internal.blitz.enabled && path == proxyConfigVals.internal.blitz.path -> responseResults.content =
+            ByteString.copyFromUtf8("42")
 
           else -> {
+            val cacheKey = call.request.cacheKey(path, queryParams)
+            val gzipAccepted = proxyConfigVals.http.gzipPassThroughEnabled && call.request.acceptsGzip()
+            val cachedResponse = proxy.scrapeResultsCache.getFresh(cacheKey)
             val agentContextInfo = proxy.pathManager.getAgentContextInfo(path)
-            if (agentContextInfo.isNull()) {
+            if (cachedResponse.isNotNull()) {
+              responseResults.assignCached(cachedResponse, gzipAccepted, "cache_hit")
+            } else if (agentContextInfo.isNull()) {
               val msg = "Invalid path request /$path"
               proxy.logActivity(msg)
               logger.info { msg }
@@ -178,24 +221,64 @@ internal object ProxyHttpConfig : KLogging() {
                 logger.error { msg }
                 responseResults.apply { updateMsg = "invalid_agent_context"; statusCode = NotFound }
               } else {
-                val jobs = agentContextInfo.agentContexts.map {
-                  async {
-                    submitScrapeRequest(
-                      it,
-                      proxy,
-                      path,
-                      queryParams,
-                      call.request,
-                      call.response
+                // Consolidated paths that are not fanned out are routed to a single agent
+                val route = agentContextInfo.route?.takeIf { it.mode != ConsolidatedRoutingMode.FANOUT }
+                // Consolidated results have to be inflated to be merged
+                val gzipPassThrough = gzipAccepted && (route.isNotNull() || agentContextInfo.agentContexts.size == 1)
+                val coalescingEnabled = proxyConfigVals.internal.scrapeCoalescingEnabled
+                // Streamed content has a single reader, so it cannot be shared by coalesced requests or cached
+                val streamingEnabled =
+                  gzipPassThrough &&
+                      proxyConfigVals.http.chunkStreamingEnabled &&
+                      !coalescingEnabled &&
+                      !proxy.scrapeResultsCache.enabled
+
+                suspend fun scrape(agentContext: AgentContext): ScrapeRequestResponse {
+                  val submit =
+                    suspend {
+                      proxy.scrapeAdmissionController.admit(agentContext) {
+                        submitScrapeRequest(
+                          agentContext,
+                          proxy,
+                          path,
+                          queryParams,
+                          call.request,
+                          call.response,
+                          streamingEnabled
+                        )
+                      }
+                    }
+                  return if (coalescingEnabled)
+                    proxy.scrapeRequestCoalescer.coalesce(call.request.scrapeKey(agentContext, path, queryParams), submit)
+                  else
+                    submit()
+                }
+
+                val jobs =
+                  if (route.isNotNull()) {
+                    val internalConfigVals = proxy.configVals.proxy.internal
+                    val hedgePercentile =
+                      internalConfigVals.consolidatedHedgePercentile
+                        .takeIf { internalConfigVals.consolidatedHedgingEnabled }
+                    listOf(
+                      routedScrape(
+                        route,
+                        agentContextInfo.agentContexts,
+                        hedgePercentile,
+                        { outcome -> proxy.metrics { scrapeHedgeCount.labels(outcome).inc() } }
+                      ) { scrape(it) }
                     )
+                  } else {
+                    agentContextInfo.agentContexts
+                      .map { agentContext -> async { scrape(agentContext) } }
+                      .map { it.await() }
+                  }.onEach { response ->
+                    var status = "/$path - ${response.updateMsg} - ${response.statusCode}"
+                    if (!response.statusCode.isSuccess()) status += " reason: [${response.failureReason}]"
+                    status += " time: ${response.fetchDuration} url: ${response.url}"
+
+                    proxy.logActivity(status)
                   }
-                }.map { it.await() }.onEach { response ->
-                  var status = "/$path - ${response.updateMsg} - ${response.statusCode}"
-                  if (!response.statusCode.isSuccess()) status += " reason: [${response.failureReason}]"
-                  status += " time: ${response.fetchDuration} url: ${response.url}"
-
-                  proxy.logActivity(status)
-                }
 
                 val statusCodes = jobs.map { it.statusCode }.toSet().toList()
                 val contentTypes = jobs.map { it.contentType }.toSet().toList()
@@ -206,17 +289,68 @@ internal object ProxyHttpConfig : KLogging() {
                 responseResults.apply {
                   statusCode = if (statusCodes.contains(OK)) OK else statusCodes[0]
                   contentType = if (okContentType.isNotNull()) okContentType else contentTypes[0]
-                  contentText = jobs.joinToString("\n") { it.contentText }
+                  // Unzip content here, unless the client will accept the agent's gzipped bytes
+                  content = jobs.map { if (it.zipped && !gzipPassThrough) it.content.gunzip() else it.content }
+                    .joinBytes(NEWLINE)
+                  zipped = gzipPassThrough && jobs[0].zipped
+                  contentChannel = if (jobs.size == 1) jobs[0].contentChannel else null
                   updateMsg = updateMsgs
+                  retryAfterSecs = jobs.maxOf { it.retryAfterSecs }
                 }
+
+                // A single agent's response is cached as returned, so it stays zipped
+                val cacheableResponse =
+                  if (jobs.size == 1)
+                    jobs[0]
+                  else
+                    responseResults.run {
+                      ScrapeRequestResponse(
+                        statusCode = statusCode,
+                        updateMsg = updateMsg,
+                        contentType = contentType,
+                        content = content,
+                        zipped = zipped,
+                        fetchDuration = jobs.maxOf { it.fetchDuration }
+                      )
+                    }
+                // A partial merge is not cached, so it is not served as fresh once the missing agents are back
+                if (jobs.all { it.statusCode == OK })
+                  proxy.scrapeResultsCache.put(cacheKey, cacheableResponse)
+              }
+            }
+
+            // Serve the last good response when the agent could not be reached, but not when the exporter itself
+            // failed or the path was unregistered, so real target failures still show up in Prometheus
+            val agentUnavailable =
+              responseResults.statusCode != OK &&
+                  responseResults.updateMsg.lines().any { it in STALE_UPDATE_MSGS || it.startsWith("rejected_") }
+            if (agentUnavailable) {
+              val staleResponse = proxy.scrapeResultsCache.getStale(cacheKey)
+              if (staleResponse.isNotNull()) {
+                logger.info { "Serving stale cached response for /$path after ${responseResults.updateMsg}" }
+                responseResults.assignCached(staleResponse, gzipAccepted, "cache_stale")
               }
             }
           }
         }
 
         responseResults.apply {
-          updateScrapeRequests(proxy, updateMsg)
-          call.respondWith(contentText, contentType, statusCode)
+          if (retryAfterSecs > 0 && statusCode != OK)
+            call.response.header(HttpHeaders.RetryAfter, retryAfterSecs)
+          val chunks = contentChannel
+          try {
+            when {
+              chunks.isNotNull() -> call.respondWithGzipStream(chunks, contentType, statusCode)
+              zipped -> call.respondWithGzip(content, contentType, statusCode)
+              else -> call.respondWith(content, contentType, statusCode)
+            }
+            recordOutcome(updateMsg)
+          } catch (e: IOException) {
+            // Not every engine cancels the call when the client disconnects, so it may only show up here
+            logger.info { "Client aborted request for /$path: ${e.message}" }
+            chunks?.cancel()
+            recordOutcome("client_aborted")
+          }
         }
       }
     }
@@ -236,82 +370,275 @@ internal object ProxyHttpConfig : KLogging() {
     respondText(text, contentType, status)
   }
 
+  private suspend fun ApplicationCall.respondWith(
+    bytes: ByteString,
+    contentType: ContentType = Plain,
+    status: HttpStatusCode = OK
+  ) {
+    response.header(HttpHeaders.CacheControl, "must-revalidate,no-store")
+    response.status(status)
+    respond(ByteStringContent(bytes, contentType, status))
+  }
+
+  private suspend fun ApplicationCall.respondWithGzip(
+    bytes: ByteString,
+    contentType: ContentType,
+    status: HttpStatusCode
+  ) {
+    // The content is already gzipped by the agent, so keep the Compression plugin from encoding it again
+    suppressCompression()
+    response.header(HttpHeaders.ContentEncoding, "gzip")
+    response.header(HttpHeaders.Vary, HttpHeaders.AcceptEncoding)
+    respondWith(bytes, contentType, status)
+  }
+
+  private suspend fun ApplicationCall.respondWithGzipStream(
+    chunks: ReceiveChannel<ByteString>,
+    contentType: ContentType,
+    status: HttpStatusCode
+  ) {
+    suppressCompression()
+    response.header(HttpHeaders.CacheControl, "must-revalidate,no-store")
+    response.header(HttpHeaders.ContentEncoding, "gzip")
+    response.header(HttpHeaders.Vary, HttpHeaders.AcceptEncoding)
+    val streamContentType = contentType
+    val streamStatus = status
+    respond(
+      object : OutgoingContent.WriteChannelContent() {
+        override val contentType = streamContentType
+        override val status = streamStatus
+
+        // A chunk validation failure closes the channel with a cause, which is rethrown here and aborts the response
+        override suspend fun writeTo(channel: ByteWriteChannel) {
+          try {
+            for (bytes in chunks)
+              channel.writeByteString(bytes)
+          } finally {
+            chunks.cancel()
+          }
+        }
+      }
+    )
+  }
+
+  private fun ApplicationRequest.scrapeKey(agentContext: AgentContext, path: String, encodedQueryParams: String) =
+    ScrapeRequestCoalescer.ScrapeKey(
+      agentContext.agentId,
+      path,
+      encodedQueryParams,
+      header(HttpHeaders.Accept).orEmpty(),
+      header(HttpHeaders.Authorization).orEmpty()
+    )
+
+  private fun ApplicationRequest.cacheKey(path: String, encodedQueryParams: String) =
+    ScrapeResultsCache.CacheKey(
+      path,
+      encodedQueryParams,
+      header(HttpHeaders.Accept).orEmpty(),
+      header(HttpHeaders.Authorization).orEmpty()
+    )
+
+  private fun ResponseResults.assignCached(response: ScrapeRequestResponse, gzipAccepted: Boolean, msg: String) {
+    statusCode = response.statusCode
+    contentType = response.contentType
+    content = if (response.zipped && !gzipAccepted) response.content.gunzip() else response.content
+    zipped = response.zipped && gzipAccepted
+    contentChannel = null
+    retryAfterSecs = 0
+    updateMsg = msg
+  }
+
+  // Prometheus gives up on a scrape after its own timeout, so there is no point in waiting any longer than that
+  private fun ApplicationRequest.scrapeTimeout(internalConfigVals: ConfigVals.Proxy2.Internal2): Duration {
+    val maxTimeout = internalConfigVals.scrapeRequestTimeoutSecs.seconds
+    val headerTimeout = header(SCRAPE_TIMEOUT_HEADER)?.toDoubleOrNull()?.seconds ?: return maxTimeout
+    return (headerTimeout - internalConfigVals.scrapeTimeoutMarginMillis.milliseconds)
+      .coerceAtLeast(headerTimeout / 2)
+      .coerceAtMost(maxTimeout)
+  }
+
+  private fun ApplicationRequest.acceptsGzip() =
+    acceptEncodingItems().any { (it.value == "gzip" || it.value == "*") && it.quality > 0.0 }
+
+  // Consolidated results are concatenated as a rope, so the content is never decoded or copied
+  private fun List<ByteString>.joinBytes(separator: ByteString): ByteString =
+    reduce { joined, bytes -> joined.concat(separator).concat(bytes) }
+
+  // Writes the ByteString's underlying buffers, so a rope is not flattened into one array
+  private suspend fun ByteWriteChannel.writeByteString(bytes: ByteString) =
+    bytes.asReadOnlyByteBufferList().forEach { writeFully(it) }
+
+  private class ByteStringContent(
+    private val bytes: ByteString,
+    override val contentType: ContentType,
+    override val status: HttpStatusCode
+  ) : OutgoingContent.WriteChannelContent() {
+    override val contentLength = bytes.size().toLong()
+
+    override suspend fun writeTo(channel: ByteWriteChannel) = channel.writeByteString(bytes)
+  }
+
+  // Scrapes one agent of a consolidated path. With a hedge percentile, a second agent is also scraped if the
+  // first has not answered within the path's recent latency percentile, and the first success is returned.
+  // onHedge is called with "sent" when the second scrape starts, and with "won" if it is the one returned.
+  internal suspend fun routedScrape(
+    route: ConsolidatedRoute,
+    agentContexts: List<AgentContext>,
+    hedgePercentile: Int?,
+    onHedge: (String) -> Unit,
+    scrape: suspend (AgentContext) -> ScrapeRequestResponse
+  ): ScrapeRequestResponse =
+    coroutineScope {
+      val candidates = route.candidates(agentContexts)
+      val primary = async { scrape(candidates[0]) }
+      val hedgeDelay =
+        if (hedgePercentile.isNotNull() && candidates.size > 1)
+          route.latencyPercentile(hedgePercentile)
+        else
+          null
+
+      val response =
+        if (hedgeDelay.isNull())
+          primary.await()
+        else
+          withTimeoutOrNull(hedgeDelay) { primary.await() }
+            ?: run {
+              onHedge("sent")
+              val hedge = async { scrape(candidates[1]) }
+              firstSuccess(primary, hedge)
+                .also { if (it.first === hedge) onHedge("won") }
+                .second
+            }
+
+      if (response.statusCode.isSuccess())
+        route.addLatency(response.fetchDuration)
+      response
+    }
+
+  // Returns the first successful response, or the last failure, and cancels the scrape that lost
+  private suspend fun firstSuccess(
+    primary: Deferred<ScrapeRequestResponse>,
+    hedge: Deferred<ScrapeRequestResponse>
+  ): Pair<Deferred<ScrapeRequestResponse>, ScrapeRequestResponse> {
+    val first =
+      select {
+        primary.onAwait { primary to it }
+        hedge.onAwait { hedge to it }
+      }
+    val other = if (first.first === primary) hedge else primary
+
+    if (!first.second.statusCode.isSuccess())
+      return other to other.await()
+
+    other.cancel()
+    // The loser may have completed before it was cancelled, so release any content it is streaming
+    val loserResponse = runCatching { other.await() }.getOrNull()
+    currentCoroutineContext().ensureActive()
+    loserResponse?.contentChannel?.cancel()
+    return first
+  }
+
   private suspend fun submitScrapeRequest(
     agentContext: AgentContext,
     proxy: Proxy,
     path: String,
     encodedQueryParams: String,
     request: ApplicationRequest,
-    response: ApplicationResponse
+    response: ApplicationResponse,
+    streamingEnabled: Boolean
   ): ScrapeRequestResponse {
+    val timeoutTime = request.scrapeTimeout(proxy.configVals.proxy.internal)
     val scrapeRequest = ScrapeRequestWrapper(
       agentContext,
-      proxy,
+      if (proxy.isMetricsEnabled) proxy.metrics.scrapeRequestLatency.startTimer() else null,
       path,
       encodedQueryParams,
       request.header(HttpHeaders.Authorization) ?: "",
       request.header(HttpHeaders.Accept),
-      proxy.options.debugEnabled
+      proxy.options.debugEnabled,
+      streamingEnabled,
+      timeoutTime
     )
     val logger = ProxyHttpService.logger
 
-    try {
-      val proxyConfigVals = proxy.configVals.proxy
-      val timeoutTime = proxyConfigVals.internal.scrapeRequestTimeoutSecs.seconds
-      val checkTime = proxyConfigVals.internal.scrapeRequestCheckMillis.milliseconds
-
-      proxy.scrapeRequestManager.addToScrapeRequestMap(scrapeRequest)
-      agentContext.writeScrapeRequest(scrapeRequest)
-
-      // Returns false if timed out
-      while (!scrapeRequest.suspendUntilComplete(checkTime)) {
-        // Check if agent is disconnected or agent is hung
-        if (scrapeRequest.ageDuration() >= timeoutTime || !scrapeRequest.agentContext.isValid() || !proxy.isRunning) return ScrapeRequestResponse(
+    val scrapeResults =
+      try {
+        proxy.scrapeRequestManager.addToScrapeRequestMap(scrapeRequest)
+        agentContext.writeScrapeRequest(scrapeRequest, timeoutTime)
+
+        // Completed by the agent response, or failed immediately if the agent disconnects or the proxy stops
+        scrapeRequest.awaitResults(timeoutTime - scrapeRequest.ageDuration())
+          ?: return ScrapeRequestResponse(
+            statusCode = HttpStatusCode.ServiceUnavailable,
+            updateMsg = "timed_out",
+            fetchDuration = scrapeRequest.ageDuration()
+          )
+      } catch (e: ScrapeBacklogFullException) {
+        logger.info { "Scrape request $scrapeRequest rejected: ${e.message}" }
+        return ScrapeRequestResponse(
           statusCode = HttpStatusCode.ServiceUnavailable,
-          updateMsg = "timed_out",
+          updateMsg = "backlog_full",
+          failureReason = e.message.orEmpty(),
           fetchDuration = scrapeRequest.ageDuration()
         )
+      } catch (e: RequestFailureException) {
+        logger.info { "Scrape request $scrapeRequest failed: ${e.message}" }
+        if (agentContext.isNotValid())
+          proxy.metrics { agentDisconnectFailureLatency.observe(agentContext.invalidatedDuration.toDouble(SECONDS)) }
+        return ScrapeRequestResponse(
+          statusCode = HttpStatusCode.ServiceUnavailable,
+          updateMsg = "agent_disconnected",
+          failureReason = e.message.orEmpty(),
+          fetchDuration = scrapeRequest.ageDuration()
+        )
+      } finally {
+        val scrapeId = scrapeRequest.scrapeId
+        if (agentContext.removeScrapeRequest(scrapeRequest)) {
+          proxy.metrics { scrapeCancelCount.inc() }
+          // Any chunks already on their way from the agent are ignored
+          proxy.agentContextManager.removeChunkedContext(scrapeId)
+            ?.abort(RequestFailureException("Scrape request $scrapeId cancelled"))
+        }
+        proxy.scrapeRequestManager.removeFromScrapeRequestMap(scrapeId)
+          ?: logger.error { "Scrape request $scrapeId missing in map" }
       }
-    } finally {
-      val scrapeId = scrapeRequest.scrapeId
-      proxy.scrapeRequestManager.removeFromScrapeRequestMap(scrapeId)
-        ?: logger.error { "Scrape request $scrapeId missing in map" }
-    }
 
     logger.debug { "Results returned from $agentContext for $scrapeRequest" }
 
-    scrapeRequest.scrapeResults.also { scrapeResults ->
-      HttpStatusCode.fromValue(scrapeResults.statusCode).also { statusCode ->
-        scrapeResults.contentType.split("/").also { contentTypeElems ->
-
-          val contentType = if (contentTypeElems.size == 2) ContentType(contentTypeElems[0], contentTypeElems[1])
-          else Plain
-
-          // Do not return content on error status codes
-          return if (!statusCode.isSuccess()) {
-            scrapeRequest.scrapeResults.run {
-              ScrapeRequestResponse(
-                statusCode = statusCode,
-                contentType = contentType,
-                failureReason = failureReason,
-                url = url,
-                updateMsg = "path_not_found",
-                fetchDuration = scrapeRequest.ageDuration()
-              )
-            }
-          } else {
-            scrapeRequest.scrapeResults.run {
-              // Unzip content here
-              ScrapeRequestResponse(
-                statusCode = statusCode,
-                contentType = contentType,
-                contentText = if (zipped) contentAsZipped.unzip() else contentAsText,
-                failureReason = failureReason,
-                url = url,
-                updateMsg = "success",
-                fetchDuration = scrapeRequest.ageDuration()
-              )
-            }
+    HttpStatusCode.fromValue(scrapeResults.statusCode).also { statusCode ->
+      scrapeResults.contentType.split("/").also { contentTypeElems ->
+
+        val contentType = if (contentTypeElems.size == 2) ContentType(contentTypeElems[0], contentTypeElems[1])
+        else Plain
+
+        // Do not return content on error status codes
+        return if (!statusCode.isSuccess()) {
+          scrapeResults.run {
+            contentChannel?.cancel()
+            ScrapeRequestResponse(
+              statusCode = statusCode,
+              contentType = contentType,
+              failureReason = failureReason,
+              url = url,
+              updateMsg = "path_not_found",
+              fetchDuration = scrapeRequest.ageDuration()
+            )
+          }
+        } else {
+          scrapeResults.run {
+            // Content is left zipped, so it can be passed through or shared by coalesced requests
+            ScrapeRequestResponse(
+              statusCode = statusCode,
+              contentType = contentType,
+              zipped = zipped,
+              // Streamed content arrives on contentChannel after the request completes
+              content = if (zipped) contentAsZipped else contentAsBytes,
+              contentChannel = contentChannel,
+              failureReason = failureReason,
+              url = url,
+              updateMsg = "success",
+              fetchDuration = scrapeRequest.ageDuration()
+            )
           }
         }
       }
@@ -319,19 +646,25 @@ internal object ProxyHttpConfig : KLogging() {
   }
 }
 
-private class ScrapeRequestResponse(
+internal class ScrapeRequestResponse(
   val statusCode: HttpStatusCode,
   val updateMsg: String,
   var contentType: ContentType = Plain,
-  var contentText: String = "",
+  var content: ByteString = ByteString.EMPTY,
+  val zipped: Boolean = false,
+  val contentChannel: ReceiveChannel<ByteString>? = null,
   val failureReason: String = "",
   val url: String = "",
+  val retryAfterSecs: Int = 0,
   val fetchDuration: Duration
 )
 
 private class ResponseResults(
   var statusCode: HttpStatusCode = OK,
   var contentType: ContentType = Plain,
-  var contentText: String = "",
+  var content: ByteString = ByteString.EMPTY,
+  var zipped: Boolean = false,
+  var contentChannel: ReceiveChannel<ByteString>? = null,
+  var retryAfterSecs: Int = 0,
   var updateMsg: String = ""
 )
\ No newline at end of file
@@ -51,12 +51,52 @@ internal class ProxyMetrics(proxy: Proxy) {
       help("Proxy heartbeat count")
     }
 
+  val scrapeCoalesceCount =
+    counter {
+      name("proxy_scrape_coalesce_count")
+      help("Proxy scrape requests that originated or joined a coalesced scrape")
+      labelNames("type")
+    }
+
+  val scrapeCacheCount =
+    counter {
+      name("proxy_scrape_cache_count")
+      help("Proxy scrape cache hits, misses, stale responses and evictions")
+      labelNames("type")
+    }
+
+  val admissionRejectionCount =
+    counter {
+      name("proxy_admission_rejection_count")
+      help("Proxy scrape requests rejected by admission control")
+      labelNames("reason")
+    }
+
+  val scrapeHedgeCount =
+    counter {
+      name("proxy_scrape_hedge_count")
+      help("Proxy consolidated scrapes hedged to a second agent, and the hedges that answered first")
+      labelNames("type")
+    }
+
+  val scrapeCancelCount =
+    counter {
+      name("proxy_scrape_cancel_count")
+      help("Proxy scrape requests abandoned after being sent to an agent")
+    }
+
   val scrapeRequestLatency =
     summary {
       name("proxy_scrape_request_latency_seconds")
       help("Proxy scrape request latency in seconds")
     }
 
+  val agentDisconnectFailureLatency =
+    summary {
+      name("proxy_agent_disconnect_failure_latency_seconds")
+      help("Proxy time from agent disconnect to failing its outstanding scrape requests in seconds")
+    }
+
   init {
     gauge {
       name("proxy_start_time_seconds")
@@ -87,6 +127,30 @@ internal class ProxyMetrics(proxy: Proxy) {
       data = { proxy.scrapeRequestManager.scrapeMapSize.toDouble() }
     )
 
+    SamplerGaugeCollector(
+      name = "proxy_scrape_cache_size_bytes",
+      help = "Proxy scrape cache size in bytes",
+      data = { proxy.scrapeResultsCache.sizeBytes.toDouble() }
+    )
+
+    SamplerGaugeCollector(
+      name = "proxy_chunked_buffered_bytes",
+      help = "Proxy chunked content of incomplete scrapes in bytes",
+      data = { proxy.agentContextManager.totalChunkedByteCount.toDouble() }
+    )
+
+    SamplerGaugeCollector(
+      name = "proxy_admission_concurrency_limit",
+      help = "Proxy adaptive limit on concurrent scrapes",
+      data = { proxy.scrapeAdmissionController.concurrencyLimit.toDouble() }
+    )
+
+    SamplerGaugeCollector(
+      name = "proxy_admission_inflight_scrapes",
+      help = "Proxy scrapes admitted and not yet completed",
+      data = { proxy.scrapeAdmissionController.inflightScrapes.toDouble() }
+    )
+
     SamplerGaugeCollector(
       name = "proxy_cumulative_agent_backlog_size",
       help = "Proxy cumulative agent backlog size",
@@ -20,50 +20,97 @@ package io.prometheus.proxy
 
 import com.github.pambrose.common.util.isNotNull
 import com.github.pambrose.common.util.isNull
-import com.google.common.collect.Maps.newConcurrentMap
-import io.prometheus.Proxy
 import io.prometheus.common.Messages.EMPTY_AGENT_ID_MSG
 import io.prometheus.common.Messages.EMPTY_PATH_MSG
 import io.prometheus.grpc.krotodc.UnregisterPathResponse
+import kotlinx.collections.immutable.PersistentMap
+import kotlinx.collections.immutable.persistentHashMapOf
 import mu.two.KLogging
 
-internal class ProxyPathManager(private val proxy: Proxy, private val isTestMode: Boolean) {
-
-  class AgentContextInfo(var consolidated: Boolean, val agentContexts: MutableList<AgentContext>) {
+internal class ProxyPathManager(
+  private val agentContextManager: AgentContextManager,
+  private val isTestMode: Boolean,
+  private val routingMode: ConsolidatedRoutingMode = ConsolidatedRoutingMode.FANOUT,
+) {
+
+  // Immutable, so readers can hold one without seeing a partially updated consolidated list.
+  // Consolidated paths have a route, which picks the agents to scrape.
+  class AgentContextInfo(
+    val consolidated: Boolean,
+    val agentContexts: List<AgentContext>,
+    val route: ConsolidatedRoute? = null,
+  ) {
     override fun toString(): String {
       return "AgentContextInfo(consolidated=$consolidated, agentContexts=$agentContexts)"
     }
   }
 
-  private val pathMap = newConcurrentMap<String, AgentContextInfo>()
+  // A versioned snapshot of the routing table. Each mutation publishes a new one.
+  class PathTable(val version: Long, val paths: PersistentMap<String, AgentContextInfo>)
+
+  // Reads are a single volatile read, mutations are serialized on writeLock.
+  // The table is a persistent map, so a mutation only copies the nodes on the changed paths, not the whole table.
+  @Volatile
+  var pathTable = PathTable(0, persistentHashMapOf())
+    private set
+
+  private val writeLock = Any()
 
-  fun getAgentContextInfo(path: String) = pathMap[path]
+  // Map agent_id to the paths it is registered on, guarded by writeLock
+  private val agentPaths = mutableMapOf<String, MutableSet<String>>()
+
+  fun getAgentContextInfo(path: String) = pathTable.paths[path]
 
   val pathMapSize: Int
-    get() = pathMap.size
+    get() = pathTable.paths.size
 
   val allPaths: List<String>
-    get() = synchronized(pathMap) {
-      return pathMap.keys.toList()
+    get() = pathTable.paths.keys.toList()
+
+  private inline fun updatePaths(block: (MutableMap<String, AgentContextInfo>) -> Unit) {
+    val current = pathTable
+    val updated = current.paths.builder().also(block).build()
+    pathTable = PathTable(current.version + 1, updated)
+  }
+
+  private fun indexPath(agentId: String, path: String) {
+    agentPaths.getOrPut(agentId) { mutableSetOf() } += path
+  }
+
+  private fun unindexPath(agentId: String, path: String) {
+    agentPaths[agentId]?.also { paths ->
+      paths -= path
+      if (paths.isEmpty())
+        agentPaths.remove(agentId)
     }
+  }
 
   fun addPath(path: String, agentContext: AgentContext) {
     require(path.isNotEmpty()) { EMPTY_PATH_MSG }
 
-    synchronized(pathMap) {
-      val agentInfo = pathMap[path]
+    synchronized(writeLock) {
+      val agentInfo = pathTable.paths[path]
       if (agentContext.consolidated) {
         if (agentInfo.isNull()) {
-          pathMap[path] = AgentContextInfo(true, mutableListOf(agentContext))
+          updatePaths { it[path] = AgentContextInfo(true, listOf(agentContext), ConsolidatedRoute(routingMode)) }
+          indexPath(agentContext.agentId, path)
         } else {
           if (agentContext.consolidated != agentInfo.consolidated)
             logger.warn { "Mismatch of agent context types: ${agentContext.consolidated} and ${agentInfo.consolidated}" }
-          else
-            agentInfo.agentContexts += agentContext
+          else {
+            updatePaths {
+              it[path] = AgentContextInfo(true, agentInfo.agentContexts + agentContext, agentInfo.route)
+            }
+            indexPath(agentContext.agentId, path)
+          }
         }
       } else {
-        if (agentInfo.isNotNull()) logger.info { "Overwriting path /$path for ${agentInfo.agentContexts[0]}" }
-        pathMap[path] = AgentContextInfo(false, mutableListOf(agentContext))
+        if (agentInfo.isNotNull()) {
+          logger.info { "Overwriting path /$path for ${agentInfo.agentContexts[0]}" }
+          agentInfo.agentContexts.forEach { unindexPath(it.agentId, path) }
+        }
+        updatePaths { it[path] = AgentContextInfo(false, listOf(agentContext)) }
+        indexPath(agentContext.agentId, path)
       }
 
       if (!isTestMode) logger.info { "Added path /$path for $agentContext" }
@@ -74,8 +121,8 @@ internal class ProxyPathManager(private val proxy: Proxy, private val isTestMode
     require(path.isNotEmpty()) { EMPTY_PATH_MSG }
     require(agentId.isNotEmpty()) { EMPTY_AGENT_ID_MSG }
 
-    synchronized(pathMap) {
-      val agentInfo = pathMap[path]
+    synchronized(writeLock) {
+      val agentInfo = pathTable.paths[path]
       val results =
         if (agentInfo.isNull()) {
           val msg = "Unable to remove path /$path - path not found"
@@ -90,14 +137,15 @@ internal class ProxyPathManager(private val proxy: Proxy, private val isTestMode
             false to msg
           } else {
             if (agentInfo.consolidated && agentInfo.agentContexts.size > 1) {
-              agentInfo.agentContexts.remove(agentContext)
+              updatePaths { it[path] = AgentContextInfo(true, agentInfo.agentContexts - agentContext, agentInfo.route) }
               if (!isTestMode)
                 logger.info { "Removed element of path /$path for $agentInfo" }
             } else {
-              pathMap.remove(path)
+              updatePaths { it.remove(path) }
               if (!isTestMode)
                 logger.info { "Removed path /$path for $agentInfo" }
             }
+            unindexPath(agentId, path)
             true to ""
           }
         }
@@ -106,30 +154,40 @@ internal class ProxyPathManager(private val proxy: Proxy, private val isTestMode
   }
 
   // This is called on agent disconnects
-  fun removeFromPathManager(agentId: String, reason: String) {
-    require(agentId.isNotEmpty()) { EMPTY_AGENT_ID_MSG }
+  fun removeFromPathManager(agentId: String, reason: String) = removeFromPathManager(listOf(agentId), reason)
+
+  // Removes the paths of many agents, e.g., evicted agents, while publishing a single new table.
+  // Only the paths registered by the agents are visited and copied, so a single disconnect
+  // costs O(agent paths * log(total paths)) rather than O(total paths).
+  fun removeFromPathManager(agentIds: Collection<String>, reason: String) {
+    agentIds.forEach { require(it.isNotEmpty()) { EMPTY_AGENT_ID_MSG } }
+
+    synchronized(writeLock) {
+      val removals =
+        agentIds.mapNotNull { agentId ->
+          if (agentContextManager.getAgentContext(agentId).isNull())
+            logger.warn { "Missing agent context for agentId: $agentId ($reason)" }
+          agentPaths.remove(agentId)?.let { agentId to it }
+        }
 
-    val agentContext = proxy.agentContextManager.getAgentContext(agentId)
-    if (agentContext.isNull()) {
-      logger.warn { "Missing agent context for agentId: $agentId ($reason)" }
-    } else {
-      logger.info { "Removing paths for agentId: $agentId ($reason)" }
-
-      synchronized(pathMap) {
-        pathMap.forEach { (k, v) ->
-          if (v.agentContexts.size == 1) {
-            if (v.agentContexts[0].agentId == agentId)
-              pathMap.remove(k)
-                ?.also {
-                  if (!isTestMode)
-                    logger.info { "Removed path /$k for $it" }
-                } ?: logger.warn { "Missing ${agentContext.desc}path /$k for agentId: $agentId" }
-          } else {
-            val removed = v.agentContexts.removeIf { it.agentId == agentId }
-            if (removed)
-              logger.info { "Removed path /$k for $agentContext" }
-            else
-              logger.warn { "Missing path /$k for agentId: $agentId" }
+      if (removals.isNotEmpty()) {
+        updatePaths { paths ->
+          removals.forEach { (agentId, agentPathSet) ->
+            logger.info { "Removing paths for agentId: $agentId ($reason)" }
+            agentPathSet.forEach { path ->
+              val agentInfo = paths[path]
+              if (agentInfo.isNull()) {
+                logger.warn { "Missing path /$path for agentId: $agentId" }
+              } else {
+                val remaining = agentInfo.agentContexts.filter { it.agentId != agentId }
+                if (remaining.isEmpty())
+                  paths.remove(path)
+                else
+                  paths[path] = AgentContextInfo(agentInfo.consolidated, remaining, agentInfo.route)
+                if (!isTestMode)
+                  logger.info { "Removed path /$path for agentId: $agentId" }
+              }
+            }
           }
         }
       }
@@ -137,15 +195,17 @@ internal class ProxyPathManager(private val proxy: Proxy, private val isTestMode
   }
 
   fun toPlainText() =
-    if (pathMap.isEmpty()) {
-      "No agents connected."
-    } else {
-      val maxPath = pathMap.keys.maxOfOrNull { it.length } ?: 0
-      "Proxy Path Map:\n" + "Path".padEnd(maxPath + 2) + "Agent Context\n" +
-          pathMap
-            .toSortedMap()
-            .map { c -> "/${c.key.padEnd(maxPath)} ${c.value.agentContexts.size} ${c.value}" }
-            .joinToString("\n\n")
+    pathTable.paths.let { pathMap ->
+      if (pathMap.isEmpty()) {
+        "No agents connected."
+      } else {
+        val maxPath = pathMap.keys.maxOfOrNull { it.length } ?: 0
+        "Proxy Path Map:\n" + "Path".padEnd(maxPath + 2) + "Agent Context\n" +
+            pathMap
+              .toSortedMap()
+              .map { c -> "/${c.key.padEnd(maxPath)} ${c.value.agentContexts.size} ${c.value}" }
+              .joinToString("\n\n")
+      }
     }
 
   companion object : KLogging()
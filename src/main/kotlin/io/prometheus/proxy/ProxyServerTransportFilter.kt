@@ -30,8 +30,8 @@ internal class ProxyServerTransportFilter(private val proxy: Proxy) : ServerTran
 
   override fun transportReady(attributes: Attributes): Attributes {
     val remoteAddress = attributes.get(REMOTE_ADDR_KEY)?.toString() ?: UNKNOWN_ADDRESS
-    val agentContext = AgentContext(remoteAddress)
-    proxy.agentContextManager.addAgentContext(agentContext)
+    val agentContext = proxy.newAgentContext(remoteAddress)
+    proxy.addAgentContext(agentContext)
 
     return attributes {
       set(AGENT_ID_KEY, agentContext.agentId)
@@ -37,7 +37,9 @@ import io.prometheus.grpc.RegisterAgentResponse
 import io.prometheus.grpc.RegisterPathRequest
 import io.prometheus.grpc.RegisterPathResponse
 import io.prometheus.grpc.ScrapeRequest
+import io.prometheus.grpc.ScrapeRequestBatch
 import io.prometheus.grpc.ScrapeResponse
+import io.prometheus.grpc.ScrapeResponseBatch
 import io.prometheus.grpc.UnregisterPathRequest
 import io.prometheus.grpc.UnregisterPathResponse
 import io.prometheus.grpc.krotodc.HeartBeatResponse
@@ -50,13 +52,19 @@ import io.prometheus.grpc.krotodc.registerpathresponse.toProto
 import io.prometheus.grpc.krotodc.scraperesponse.toDataClass
 import io.prometheus.grpc.krotodc.unregisterpathresponse.toProto
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.transform
 import mu.two.KLogging
 import java.util.*
 import java.util.concurrent.CancellationException
-import java.util.concurrent.atomic.AtomicLong
+import kotlin.time.Duration.Companion.milliseconds
 
 internal class ProxyServiceImpl(private val proxy: Proxy) : ProxyServiceGrpcKt.ProxyServiceCoroutineImplBase() {
+  private val internalConfigVals = proxy.configVals.proxy.internal
+  private val httpConfigVals = proxy.configVals.proxy.http
+  private val requestBatchLinger = internalConfigVals.requestBatchLingerMillis.milliseconds
 
   override suspend fun connectAgent(request: Empty): Empty {
     if (proxy.options.transportFilterDisabled) {
@@ -80,8 +88,8 @@ internal class ProxyServiceImpl(private val proxy: Proxy) : ProxyServiceGrpcKt.P
     }
 
     proxy.metrics { connectCount.inc() }
-    val agentContext = AgentContext(UNKNOWN_ADDRESS)
-    proxy.agentContextManager.addAgentContext(agentContext)
+    val agentContext = proxy.newAgentContext(UNKNOWN_ADDRESS)
+    proxy.addAgentContext(agentContext)
     return io.prometheus.grpc.krotodc.AgentInfo(agentContext.agentId)
       .apply { require(agentId.isNotEmpty()) { EMPTY_AGENT_ID_MSG } }
       .toProto()
@@ -101,24 +109,27 @@ internal class ProxyServiceImpl(private val proxy: Proxy) : ProxyServiceGrpcKt.P
     return io.prometheus.grpc.krotodc.RegisterAgentResponse(
       valid = valid,
       reason = request.agentId,
-      agentId = "Invalid agentId: ${request.agentId} (registerAgent)"
+      agentId = "Invalid agentId: ${request.agentId} (registerAgent)",
+      batchedStreams = request.batchedStreams && internalConfigVals.batchedStreamsEnabled,
+      contentAsBytes = true,
+      streamHeartbeats = true
     ).apply { require(this.agentId.isNotEmpty()) { EMPTY_AGENT_ID_MSG } }
       .toProto()
   }
 
   override suspend fun registerPath(request: RegisterPathRequest): RegisterPathResponse {
-    var valid = false
+    var pathId = -1L
 
     proxy.agentContextManager.getAgentContext(request.agentId)
       ?.apply {
-        valid = true
+        pathId = assignPathId(request.path)
         proxy.pathManager.addPath(request.path, this)
         markActivityTime(false)
       } ?: logger.error { "Missing AgentContext for agentId: ${request.agentId}" }
 
     return io.prometheus.grpc.krotodc.RegisterPathResponse(
-      pathId = if (valid) PATH_ID_GENERATOR.getAndIncrement() else -1,
-      valid = valid,
+      pathId = pathId,
+      valid = pathId > 0,
       reason = "Invalid agentId: ${request.agentId} (registerPath)",
       pathCount = proxy.pathManager.pathMapSize
     ).toProto()
@@ -134,7 +145,11 @@ internal class ProxyServiceImpl(private val proxy: Proxy) : ProxyServiceGrpcKt.P
         reason = "Invalid agentId: $agentId (unregisterPath)"
       )
     } else {
-      proxy.pathManager.removePath(request.path, agentId).apply { agentContext.markActivityTime(false) }
+      proxy.pathManager.removePath(request.path, agentId)
+        .apply {
+          agentContext.removePathId(request.path)
+          agentContext.markActivityTime(false)
+        }
     }.toProto()
   }
 
@@ -158,15 +173,53 @@ internal class ProxyServiceImpl(private val proxy: Proxy) : ProxyServiceGrpcKt.P
       proxy.agentContextManager.getAgentContext(request.agentId)
         ?.also { agentContext ->
           while (proxy.isRunning && agentContext.isValid())
-            agentContext.readScrapeRequest()?.apply { emit(scrapeRequest) }
+            agentContext.readScrapeRequest()?.also { emit(it) }
+        }
+    }
+
+  // Sends whatever is queued for the agent, after a short linger, in a single stream message
+  override fun readRequestBatchesFromProxy(request: AgentInfo): Flow<ScrapeRequestBatch> =
+    flow {
+      proxy.agentContextManager.getAgentContext(request.agentId)
+        ?.also { agentContext ->
+          while (proxy.isRunning && agentContext.isValid()) {
+            val first = agentContext.readScrapeRequest() ?: continue
+            val batch = mutableListOf(first)
+            // A request with nothing queued behind it is not held back, so the linger only delays bursts
+            var lingered = !requestBatchLinger.isPositive()
+            while (batch.size < internalConfigVals.requestBatchMaxSize) {
+              val next = agentContext.tryReadScrapeRequest()
+              if (next != null) {
+                batch += next
+              } else {
+                if (lingered || batch.size == 1)
+                  break
+                lingered = true
+                delay(requestBatchLinger)
+              }
+            }
+            emit(ScrapeRequestBatch.newBuilder().addAllRequests(batch).build())
+          }
         }
     }
 
+  override suspend fun writeResponseBatchesToProxy(requests: Flow<ScrapeResponseBatch>): Empty =
+    writeResponsesToProxy(requests.transform { batch -> batch.responsesList.forEach { emit(it) } })
+
   override suspend fun writeResponsesToProxy(requests: Flow<ScrapeResponse>): Empty {
+    // A stream belongs to a single agent, so its context is looked up on the first heartbeat only
+    var heartbeatContext: AgentContext? = null
     runCatching {
       requests.collect { response ->
-        val scrapeResults = response.toDataClass().toScrapeResults()
-        proxy.scrapeRequestManager.assignScrapeResults(scrapeResults)
+        if (response.heartbeat) {
+          proxy.metrics { heartbeatCount.inc() }
+          (heartbeatContext ?: proxy.agentContextManager.getAgentContext(response.agentId).also { heartbeatContext = it })
+            ?.markActivityTime(false)
+            ?: logger.info { "Stream heartbeat missing AgentContext agentId: ${response.agentId}" }
+        } else {
+          val scrapeResults = response.toDataClass().toScrapeResults()
+          proxy.scrapeRequestManager.assignScrapeResults(scrapeResults)
+        }
       }
     }.onFailure { throwable ->
       if (proxy.isRunning)
@@ -180,39 +233,78 @@ internal class ProxyServiceImpl(private val proxy: Proxy) : ProxyServiceGrpcKt.P
   }
 
   override suspend fun writeChunkedResponsesToProxy(requests: Flow<ChunkedScrapeResponse>): Empty {
+    // scrapeIds with a header but no summary yet on this stream
+    val openScrapeIds = mutableSetOf<Long>()
     runCatching {
-      requests.collect { response ->
-        val ooc = response.chunkOneOfCase
-        val chunkedContextMap = proxy.agentContextManager.chunkedContextMap
-        when (ooc.name.lowercase(Locale.getDefault())) {
-          "header" -> {
-            val scrapeId = response.header.headerScrapeId
-            logger.debug { "Reading header for scrapeId: $scrapeId}" }
-            chunkedContextMap[scrapeId] = ChunkedContext(response)
-          }
+      // Streaming clients are fed by coroutines in this scope, which are cancelled if the stream fails
+      coroutineScope {
+        requests.collect { response ->
+          val ooc = response.chunkOneOfCase
+          val chunkedContextMap = proxy.agentContextManager.chunkedContextMap
+          when (ooc.name.lowercase(Locale.getDefault())) {
+            "header" -> {
+              val scrapeId = response.header.headerScrapeId
+              logger.debug { "Reading header for scrapeId: $scrapeId}" }
+              val streaming = proxy.scrapeRequestManager.scrapeRequestMap[scrapeId]?.streamingEnabled ?: false
+              val context =
+                proxy.agentContextManager.newChunkedContext(
+                  response,
+                  streaming,
+                  httpConfigVals.chunkStreamingCapacity,
+                  httpConfigVals.chunkStreamingOverflowMillis.milliseconds,
+                  this
+                )
+              proxy.agentContextManager.addChunkedContext(scrapeId, context)
+              openScrapeIds += scrapeId
+              // A streaming request completes on the header and the chunks are written as they arrive
+              if (streaming)
+                proxy.scrapeRequestManager.assignScrapeResults(context.scrapeResults)
+            }
 
-          "chunk" -> {
-            response.chunk
-              .apply {
-                logger.debug { "Reading chunk $chunkCount for scrapeId: $chunkScrapeId" }
-                val context = chunkedContextMap[chunkScrapeId]
-                check(context.isNotNull()) { "Missing chunked context with scrapeId: $chunkScrapeId" }
-                context.applyChunk(chunkBytes.toByteArray(), chunkByteCount, chunkCount, chunkChecksum)
-              }
-          }
+            "chunk" -> {
+              response.chunk
+                .apply {
+                  logger.debug { "Reading chunk $chunkCount for scrapeId: $chunkScrapeId" }
+                  // The context is removed when the scrape is cancelled, but the agent may have sent more chunks
+                  val context = chunkedContextMap[chunkScrapeId]
+                  if (context.isNull()) {
+                    logger.debug { "Ignoring chunk for cancelled scrapeId: $chunkScrapeId" }
+                    return@collect
+                  }
+                  try {
+                    context.applyChunk(chunkBytes, chunkByteCount, chunkCount, chunkChecksum)
+                  } catch (e: ChunkValidationException) {
+                    openScrapeIds -= chunkScrapeId
+                    failChunkedScrape(chunkScrapeId, context, e)
+                  }
+                }
+            }
 
-          "summary" -> {
-            response.summary
-              .apply {
-                val context = chunkedContextMap.remove(summaryScrapeId)
-                check(context.isNotNull()) { "Missing chunked context with scrapeId: $summaryScrapeId" }
-                logger.debug { "Reading summary chunkCount: ${context.totalChunkCount} byteCount: ${context.totalByteCount} for scrapeId: $summaryScrapeId" }
-                context.applySummary(summaryChunkCount, summaryByteCount, summaryChecksum)
-                proxy.scrapeRequestManager.assignScrapeResults(context.scrapeResults)
-              }
-          }
+            "summary" -> {
+              response.summary
+                .apply {
+                  val context = proxy.agentContextManager.removeChunkedContext(summaryScrapeId)
+                  openScrapeIds -= summaryScrapeId
+                  if (context.isNull()) {
+                    logger.debug { "Ignoring summary for cancelled scrapeId: $summaryScrapeId" }
+                    return@collect
+                  }
+                  logger.debug { "Reading summary chunkCount: ${context.totalChunkCount} byteCount: ${context.totalByteCount} for scrapeId: $summaryScrapeId" }
+                  try {
+                    if (summaryFailureReason.isEmpty())
+                      context.applySummary(summaryChunkCount, summaryByteCount, summaryChecksum)
+                    else
+                      context.applyFailure(summaryFailureReason)
+                    if (!context.streaming)
+                      proxy.scrapeRequestManager.assignScrapeResults(context.scrapeResults)
+                  } catch (e: ChunkValidationException) {
+                    failChunkedScrape(summaryScrapeId, context, e)
+                  }
+                }
+            }
 
-          else -> throw IllegalStateException("Invalid field name in writeChunkedResponsesToProxy()")
+            else -> throw IllegalStateException("Invalid field name in writeChunkedResponsesToProxy()")
+          }
         }
       }
     }.onFailure { throwable ->
@@ -223,11 +315,25 @@ internal class ProxyServiceImpl(private val proxy: Proxy) : ProxyServiceGrpcKt.P
               logger.error(throwable) { "Error in writeChunkedResponsesToProxy(): $arg" }
           }
     }
+
+    // Abort any http responses still waiting on chunks from this stream
+    openScrapeIds.forEach { scrapeId ->
+      proxy.agentContextManager.removeChunkedContext(scrapeId)
+        ?.abort(IllegalStateException("Chunked stream ended before summary for scrapeId: $scrapeId"))
+    }
     return EMPTY_INSTANCE
   }
 
+  // Fails only the scrape with the invalid chunk, so the other scrapes sharing the stream carry on
+  private fun failChunkedScrape(scrapeId: Long, context: ChunkedContext, e: ChunkValidationException) {
+    logger.warn { "Invalid chunked response for scrapeId: $scrapeId: ${e.message}" }
+    proxy.agentContextManager.removeChunkedContext(scrapeId)
+    context.applyFailure(e.message.orEmpty())
+    if (!context.streaming)
+      proxy.scrapeRequestManager.assignScrapeResults(context.scrapeResults)
+  }
+
   companion object : KLogging() {
-    private val PATH_ID_GENERATOR = AtomicLong(0L)
     internal const val UNKNOWN_ADDRESS = "Unknown"
   }
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import io.ktor.http.*
+import io.prometheus.Proxy
+import io.prometheus.common.ConfigVals
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.TimeSource.Monotonic
+
+// Rejects scrapes up front when the proxy is already backed up, rather than letting them wait out the scrape timeout.
+// In adaptive mode, the number of concurrent scrapes is also limited, with the limit raised by one per limit's worth
+// of fast scrapes and cut by the backoff ratio whenever a scrape is slow or times out (AIMD).
+internal class ScrapeAdmissionController(private val proxy: Proxy, admissionConfigVals: ConfigVals.Proxy2.Admission) {
+  private val maxAgentBacklogSize = admissionConfigVals.maxAgentBacklogSize
+  private val maxScrapeMapSize = admissionConfigVals.maxScrapeMapSize
+  private val maxBufferedBytes = admissionConfigVals.maxBufferedMbs * 1024L * 1024L
+  private val retryAfterSecs = admissionConfigVals.retryAfterSecs
+  private val adaptiveEnabled = admissionConfigVals.adaptive.enabled
+  private val minLimit = admissionConfigVals.adaptive.minLimit.toDouble()
+  private val maxLimit = admissionConfigVals.adaptive.maxLimit.toDouble()
+  private val backoffRatio = admissionConfigVals.adaptive.backoffRatio
+  private val latencyThreshold = admissionConfigVals.adaptive.latencyThresholdMillis.milliseconds
+  private val inflightCount = AtomicInteger(0)
+  private var limit = admissionConfigVals.adaptive.initialLimit.toDouble().coerceIn(minLimit, maxLimit)
+
+  val enabled = admissionConfigVals.enabled
+
+  val concurrencyLimit: Int
+    get() = synchronized(this) { limit.toInt() }
+
+  val inflightScrapes: Int
+    get() = inflightCount.get()
+
+  suspend fun admit(agentContext: AgentContext, block: suspend () -> ScrapeRequestResponse): ScrapeRequestResponse {
+    if (!enabled)
+      return block()
+
+    // The in-flight slot is only reserved once the other checks pass
+    val rejection = rejection(agentContext) ?: if (reserveSlot()) null else Rejection.CONCURRENCY_LIMIT
+    if (rejection != null) {
+      proxy.metrics { admissionRejectionCount.labels(rejection.label).inc() }
+      return ScrapeRequestResponse(
+        statusCode = rejection.statusCode,
+        updateMsg = "rejected_${rejection.label}",
+        failureReason = "Scrape rejected by admission control: ${rejection.label}",
+        retryAfterSecs = retryAfterSecs,
+        fetchDuration = Duration.ZERO
+      )
+    }
+
+    val startMark = Monotonic.markNow()
+    // A client abort or an exception is not a sign of overload, so only slow or backed up scrapes back off
+    var overloaded = false
+    try {
+      return block().also { overloaded = it.updateMsg == "timed_out" || it.updateMsg == "backlog_full" }
+    } finally {
+      inflightCount.decrementAndGet()
+      if (adaptiveEnabled)
+        adjustLimit(overloaded || startMark.elapsedNow() > latencyThreshold)
+    }
+  }
+
+  private fun rejection(agentContext: AgentContext) =
+    when {
+      maxAgentBacklogSize > 0 && agentContext.scrapeRequestBacklogSize >= maxAgentBacklogSize -> Rejection.AGENT_BACKLOG
+      maxScrapeMapSize > 0 && proxy.scrapeRequestManager.scrapeMapSize >= maxScrapeMapSize -> Rejection.SCRAPE_MAP
+      maxBufferedBytes > 0 && proxy.agentContextManager.totalChunkedByteCount >= maxBufferedBytes -> Rejection.BUFFERED_BYTES
+      else -> null
+    }
+
+  // Checking the limit and incrementing separately would let concurrent requests exceed it
+  private fun reserveSlot(): Boolean {
+    if (!adaptiveEnabled) {
+      inflightCount.incrementAndGet()
+      return true
+    }
+    val currentLimit = concurrencyLimit
+    while (true) {
+      val current = inflightCount.get()
+      if (current >= currentLimit)
+        return false
+      if (inflightCount.compareAndSet(current, current + 1))
+        return true
+    }
+  }
+
+  private fun adjustLimit(backoff: Boolean) {
+    synchronized(this) {
+      limit = if (backoff) max(minLimit, limit * backoffRatio) else min(maxLimit, limit + 1.0 / limit)
+    }
+  }
+
+  // A single agent falling behind gets a 429, while a proxy-wide limit gets a 503
+  private enum class Rejection(val label: String, val statusCode: HttpStatusCode) {
+    AGENT_BACKLOG("agent_backlog", HttpStatusCode.TooManyRequests),
+    SCRAPE_MAP("scrape_map", HttpStatusCode.ServiceUnavailable),
+    BUFFERED_BYTES("buffered_bytes", HttpStatusCode.ServiceUnavailable),
+    CONCURRENCY_LIMIT("concurrency_limit", HttpStatusCode.ServiceUnavailable),
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+// What an agent's scrape request backlog does with a new request once it is full
+internal enum class ScrapeBacklogOverflowPolicy {
+  // Wait for room, up to the scrape request timeout
+  SUSPEND,
+
+  // Reject the new request immediately
+  FAIL,
+
+  // Fail the oldest queued request to make room
+  DROP_OLDEST;
+
+  companion object {
+    fun fromConfig(value: String) =
+      values().firstOrNull { it.name.equals(value, ignoreCase = true) }
+        ?: throw IllegalArgumentException("Invalid scrape request backlog overflow policy: $value")
+  }
+}
+
+internal class ScrapeBacklogFullException(message: String) : Exception(message)
@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import com.google.common.collect.Maps.newConcurrentMap
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import java.util.concurrent.ConcurrentMap
+import kotlin.time.Duration
+import kotlin.time.TimeSource.Monotonic
+
+// Lets identical scrape requests, e.g., from an HA pair of Prometheus servers, share a single agent scrape.
+// A request joins one already in flight only if that request started within the join window.
+// onCount is called with "originating" for each agent scrape, and with "coalesced" for each shared result.
+internal class ScrapeRequestCoalescer(private val joinWindow: Duration, private val onCount: (String) -> Unit = {}) {
+  private val flightMap: ConcurrentMap<ScrapeKey, Flight> = newConcurrentMap()
+
+  suspend fun coalesce(key: ScrapeKey, block: suspend () -> ScrapeRequestResponse): ScrapeRequestResponse {
+    while (true) {
+      val current = flightMap[key]
+
+      if (current != null && !current.results.isCompleted && current.age() <= joinWindow) {
+        val results = runCatching { current.results.await() }
+        // If the originating request failed or was cancelled, try again rather than sharing its failure
+        currentCoroutineContext().ensureActive()
+        results.onSuccess {
+          onCount("coalesced")
+          return it
+        }
+        continue
+      }
+
+      val flight = Flight()
+      val claimed =
+        if (current == null)
+          flightMap.putIfAbsent(key, flight) == null
+        else
+          flightMap.replace(key, current, flight)
+
+      if (claimed) {
+        onCount("originating")
+        return try {
+          block().also { flight.results.complete(it) }
+        } catch (e: Throwable) {
+          flight.results.completeExceptionally(e)
+          throw e
+        } finally {
+          flightMap.remove(key, flight)
+        }
+      }
+    }
+  }
+
+  data class ScrapeKey(
+    val agentId: String,
+    val path: String,
+    val encodedQueryParams: String,
+    val accept: String,
+    val authHeader: String,
+  ) {
+    // The auth header is intentionally left out
+    override fun toString() = "ScrapeKey(agentId=$agentId, path=$path)"
+  }
+
+  private class Flight {
+    private val createTimeMark = Monotonic.markNow()
+    val results = CompletableDeferred<ScrapeRequestResponse>()
+
+    fun age() = createTimeMark.elapsedNow()
+  }
+}
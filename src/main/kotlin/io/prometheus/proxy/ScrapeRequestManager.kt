@@ -18,14 +18,13 @@
 
 package io.prometheus.proxy
 
-import com.google.common.collect.Maps.newConcurrentMap
+import io.prometheus.agent.RequestFailureException
 import io.prometheus.common.ScrapeResults
 import mu.two.KLogging
-import java.util.concurrent.ConcurrentMap
 
 internal class ScrapeRequestManager {
   // Map scrape_id to agent_id
-  val scrapeRequestMap: ConcurrentMap<Long, ScrapeRequestWrapper> = newConcurrentMap()
+  val scrapeRequestMap = ConcurrentLongMap<ScrapeRequestWrapper>()
 
   val scrapeMapSize: Int
     get() = scrapeRequestMap.size
@@ -40,10 +39,13 @@ internal class ScrapeRequestManager {
     val scrapeId = scrapeResults.scrapeId
     scrapeRequestMap[scrapeId]
       ?.also { wrapper ->
-        wrapper.scrapeResults = scrapeResults
-        wrapper.markComplete()
+        wrapper.markComplete(scrapeResults)
         wrapper.agentContext.markActivityTime(true)
-      } ?: logger.error { "Missing ScrapeRequestWrapper for scrape_id: $scrapeId" }
+      } ?: logger.debug { "Ignoring results for abandoned scrape_id: $scrapeId" }
+  }
+
+  fun failAllScrapeRequests(reason: String) {
+    scrapeRequestMap.values.forEach { it.markFailed(RequestFailureException(reason)) }
   }
 
   fun removeFromScrapeRequestMap(scrapeId: Long): ScrapeRequestWrapper? {
@@ -18,76 +18,95 @@
 
 package io.prometheus.proxy
 
-import com.github.pambrose.common.delegate.AtomicDelegates.nonNullableReference
 import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
-import com.github.pambrose.common.util.isNotNull
-import io.prometheus.Proxy
+import io.prometheus.client.Summary
 import io.prometheus.common.Messages.EMPTY_AGENT_ID_MSG
 import io.prometheus.common.ScrapeResults
 import io.prometheus.grpc.krotodc.ScrapeRequest
 import io.prometheus.grpc.krotodc.scraperequest.toProto
-import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
 import kotlin.time.Duration
 import kotlin.time.TimeSource.Monotonic
 
 internal class ScrapeRequestWrapper(
   val agentContext: AgentContext,
-  proxy: Proxy,
-  path: String,
+  // Started by the caller when metrics are enabled
+  private val requestTimer: Summary.Timer?,
+  private val path: String,
   encodedQueryParams: String,
   authHeader: String,
   accept: String?,
-  debugEnabled: Boolean
+  debugEnabled: Boolean,
+  val streamingEnabled: Boolean = false,
+  private val timeout: Duration = Duration.ZERO
 ) {
   private val clock = Monotonic
   private val createTimeMark = clock.markNow()
-  private val completeChannel = Channel<Boolean>()
-  private val requestTimer = if (proxy.isMetricsEnabled) proxy.metrics.scrapeRequestLatency.startTimer() else null
+  private val completion = CompletableDeferred<ScrapeResults>()
+  private val sendState = AtomicInteger(QUEUED)
 
   val scrapeRequest =
-    ScrapeRequest(
-      agentId = agentContext.agentId,
-      scrapeId = SCRAPE_ID_GENERATOR.getAndIncrement(),
-      path = path,
-      accept = accept.orEmpty(),
-      debugEnabled = debugEnabled,
-      encodedQueryParams = encodedQueryParams,
-      authHeader = authHeader,
-    ).apply { require(agentId.isNotEmpty()) { EMPTY_AGENT_ID_MSG } }
-      .toProto()
-
-  var scrapeResults: ScrapeResults by nonNullableReference()
+    agentContext.pathId(path)
+      .let { pathId ->
+        require(agentContext.agentId.isNotEmpty()) { EMPTY_AGENT_ID_MSG }
+        val compact = agentContext.compactScrapeRequests && pathId > 0
+        // The compact form leaves out the strings the agent can resolve from the path_id
+        ScrapeRequest(
+          agentId = if (compact) "" else agentContext.agentId,
+          scrapeId = SCRAPE_ID_GENERATOR.getAndIncrement(),
+          path = if (compact) "" else path,
+          pathId = if (compact) pathId else 0L,
+          accept = accept.orEmpty(),
+          debugEnabled = debugEnabled,
+          encodedQueryParams = encodedQueryParams,
+          authHeader = authHeader,
+        ).toProto()
+      }
 
   val scrapeId: Long
     get() = scrapeRequest.scrapeId
 
   fun ageDuration() = createTimeMark.elapsedNow()
 
-  fun markComplete() {
-    requestTimer?.observeDuration()
-    completeChannel.close()
+  // The agent measures the deadline from when the request arrives, so the time spent queued here is subtracted
+  fun toScrapeRequestWithDeadline(): io.prometheus.grpc.ScrapeRequest =
+    if (timeout <= Duration.ZERO)
+      scrapeRequest
+    else
+      scrapeRequest.toBuilder()
+        .setScrapeTimeoutMillis((timeout - ageDuration()).inWholeMilliseconds.coerceAtLeast(1))
+        .build()
+
+  fun markComplete(scrapeResults: ScrapeResults) {
+    if (completion.complete(scrapeResults))
+      requestTimer?.observeDuration()
   }
 
-  suspend fun suspendUntilComplete(waitMillis: Duration) =
-    withTimeoutOrNull(waitMillis.inWholeMilliseconds) {
-      // completeChannel will eventually close and never get a value, or timeout
-      runCatching {
-        completeChannel.receive()
-        true
-      }.getOrElse {
-        true
-      }
-    }.isNotNull()
+  // Wakes up the waiter immediately, e.g., when the agent disconnects or the proxy shuts down
+  fun markFailed(cause: Throwable) = completion.completeExceptionally(cause)
+
+  // Returns false if the request was abandoned while queued, in which case it is never sent to the agent
+  fun markSent() = sendState.compareAndSet(QUEUED, SENT)
+
+  // Returns true if the agent already has the request and has not returned its results, so it should be cancelled
+  fun abandon() = !sendState.compareAndSet(QUEUED, ABANDONED) && !completion.isCompleted
+
+  // Returns null if the timeout expires and throws if the request was failed
+  suspend fun awaitResults(timeout: Duration): ScrapeResults? = withTimeoutOrNull(timeout) { completion.await() }
 
   override fun toString() =
     toStringElements {
       add("scrapeId", scrapeRequest.scrapeId)
-      add("path", scrapeRequest.path)
+      add("path", path)
     }
 
   companion object {
     private val SCRAPE_ID_GENERATOR = AtomicLong(0L)
+    private const val QUEUED = 0
+    private const val SENT = 1
+    private const val ABANDONED = 2
   }
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import io.ktor.http.HttpStatusCode.Companion.OK
+import io.prometheus.Proxy
+import io.prometheus.common.ConfigVals
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource.Monotonic
+
+// Holds the most recent successful response for a path, still zipped if the agent zipped it.
+// Entries are served without a scrape while younger than the path's max age, and served in place of
+// an error while younger than the max age plus the stale-if-error window. Eviction is LRU by total bytes.
+internal class ScrapeResultsCache(private val proxy: Proxy, cacheConfigVals: ConfigVals.Proxy2.Cache) {
+  private val defaultMaxAge = cacheConfigVals.maxAgeMillis.milliseconds
+  private val pathMaxAges = cacheConfigVals.pathMaxAges.orEmpty().associate { it.path to it.maxAgeMillis.milliseconds }
+  private val staleIfError = cacheConfigVals.staleIfErrorSecs.seconds
+  private val maxSizeBytes = cacheConfigVals.maxSizeMbs * 1024L * 1024L
+
+  // Access-ordered, so iteration starts with the least recently used entry
+  private val entryMap = LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true)
+  private var totalBytes = 0L
+
+  val enabled = cacheConfigVals.enabled
+
+  val sizeBytes: Long
+    get() = synchronized(entryMap) { totalBytes }
+
+  // Hits and misses are only counted for paths that can be served fresh from the cache
+  fun getFresh(key: CacheKey): ScrapeRequestResponse? {
+    if (!freshCacheable(key.path))
+      return null
+    val maxAge = maxAge(key.path)
+
+    val entry = synchronized(entryMap) { entryMap[key] }
+    return if (entry != null && entry.age() <= maxAge) {
+      proxy.metrics { scrapeCacheCount.labels("hit").inc() }
+      entry.response
+    } else {
+      proxy.metrics { scrapeCacheCount.labels("miss").inc() }
+      null
+    }
+  }
+
+  fun getStale(key: CacheKey): ScrapeRequestResponse? {
+    if (!enabled || staleIfError <= Duration.ZERO)
+      return null
+
+    val entry = synchronized(entryMap) { entryMap[key] }
+    return if (entry != null && entry.age() <= maxAge(key.path) + staleIfError) {
+      proxy.metrics { scrapeCacheCount.labels("stale").inc() }
+      entry.response
+    } else {
+      null
+    }
+  }
+
+  fun put(key: CacheKey, response: ScrapeRequestResponse) {
+    // Streamed content is consumed by the http response, so it cannot be kept
+    if (!enabled || response.statusCode != OK || response.contentChannel != null)
+      return
+    // Neither served fresh nor in place of an error
+    if (!freshCacheable(key.path) && staleIfError <= Duration.ZERO)
+      return
+
+    val size = response.content.size().toLong()
+    if (size > maxSizeBytes)
+      return
+
+    synchronized(entryMap) {
+      entryMap.put(key, CacheEntry(response, size))?.also { totalBytes -= it.size }
+      totalBytes += size
+
+      val iter = entryMap.values.iterator()
+      while (totalBytes > maxSizeBytes && iter.hasNext()) {
+        totalBytes -= iter.next().size
+        iter.remove()
+        proxy.metrics { scrapeCacheCount.labels("eviction").inc() }
+      }
+    }
+  }
+
+  private fun maxAge(path: String) = pathMaxAges[path] ?: defaultMaxAge
+
+  private fun freshCacheable(path: String) = enabled && maxAge(path) > Duration.ZERO
+
+  data class CacheKey(
+    val path: String,
+    val encodedQueryParams: String,
+    val accept: String,
+    // Keeps a response from being served to a client with different credentials
+    val authHeader: String,
+  ) {
+    // The auth header is intentionally left out
+    override fun toString() = "CacheKey(path=$path, encodedQueryParams=$encodedQueryParams, accept=$accept)"
+  }
+
+  private class CacheEntry(val response: ScrapeRequestResponse, val size: Long) {
+    private val createTimeMark = Monotonic.markNow()
+
+    fun age() = createTimeMark.elapsedNow()
+  }
+}
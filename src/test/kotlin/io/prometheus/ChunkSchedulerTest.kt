@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.agent.ChunkScheduler
+import io.prometheus.common.GrpcObjects.newScrapeResponseChunk
+import io.prometheus.grpc.krotodc.chunkedscraperesponse.toProto
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeGreaterOrEqualTo
+import org.amshove.kluent.shouldBeLessThan
+import org.junit.jupiter.api.Test
+import java.util.zip.CRC32
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+
+class ChunkSchedulerTest {
+
+  private fun chunk(scrapeId: Long, count: Int) =
+    newScrapeResponseChunk(scrapeId, count, CHUNK_SIZE, CRC32(), ByteArray(CHUNK_SIZE)).toProto()
+
+  @Test
+  fun interleavedScrapesTest() {
+    runBlocking {
+      val finished = mutableListOf<Duration>()
+      val scheduler = ChunkScheduler(CHUNK_SIZE + 100, 16) { finished += it }
+      val large = scheduler.open()
+      val small = scheduler.open()
+
+      // The large scrape queues all of its chunks before the small scrape queues any
+      repeat(6) { large.send(chunk(1L, it + 1)) }
+      repeat(2) { small.send(chunk(2L, it + 1)) }
+      large.close()
+      small.close()
+
+      scheduler.size shouldBeEqualTo 8
+
+      val scrapeIds = scheduler.flow.take(8).toList().map { it.chunk.chunkScrapeId }
+      scrapeIds shouldBeEqualTo listOf(1L, 2L, 1L, 2L, 1L, 1L, 1L, 1L)
+      scheduler.size shouldBeEqualTo 0
+      finished.size shouldBeEqualTo 1
+      scheduler.close()
+    }
+  }
+
+  @Test
+  fun closedSchedulerTest() {
+    runBlocking {
+      val scheduler = ChunkScheduler(CHUNK_SIZE + 100, 16)
+      val queue = scheduler.open()
+      queue.send(chunk(1L, 1))
+      queue.close()
+      scheduler.close()
+
+      // Messages of closed scrapes are still sent before the flow completes
+      scheduler.flow.toList().size shouldBeEqualTo 1
+    }
+  }
+
+  @Test
+  fun scrapeQueuedTimeTest() {
+    runBlocking {
+      val finished = mutableListOf<Duration>()
+      val scheduler = ChunkScheduler(CHUNK_SIZE + 100, 16) { finished += it }
+      val queue = scheduler.open()
+      // Outlasts the measured scrape, so the flow is still running when it finishes
+      val longer = scheduler.open()
+      repeat(6) { queue.send(chunk(1L, it + 1)) }
+      repeat(7) { longer.send(chunk(2L, it + 1)) }
+      queue.close()
+      longer.close()
+      delay(200.milliseconds)
+
+      scheduler.flow.take(13).toList()
+      scheduler.close()
+
+      // Measured once per scrape, rather than once for each of its chunks
+      finished.size shouldBeEqualTo 1
+      finished.first() shouldBeGreaterOrEqualTo 200.milliseconds
+      finished.first() shouldBeLessThan 1200.milliseconds
+    }
+  }
+
+  companion object {
+    private const val CHUNK_SIZE = 1000
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.google.protobuf.ByteString
+import io.prometheus.common.ScrapeResults
+import io.prometheus.grpc.krotodc.chunkedscraperesponse.toProto
+import io.prometheus.proxy.AgentContextManager
+import io.prometheus.proxy.ChunkValidationException
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.amshove.kluent.invoking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeTrue
+import org.amshove.kluent.shouldNotBeNull
+import org.amshove.kluent.shouldThrow
+import org.junit.jupiter.api.Test
+import java.util.zip.CRC32
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+
+class ChunkedContextTest {
+
+  private fun header(scrapeId: Long) =
+    ScrapeResults(agentId = "agent", scrapeId = scrapeId).toScrapeResponseHeader().toProto()
+
+  private fun AgentContextManager.openContext(scrapeId: Long) =
+    newChunkedContext(header(scrapeId), false).also { addChunkedContext(scrapeId, it) }
+
+  private fun checksum(bytes: ByteString, count: Int) =
+    CRC32().apply { repeat(count) { update(bytes.toByteArray()) } }.value
+
+  @Test
+  fun runningTotalTest() {
+    runBlocking {
+      val manager = AgentContextManager(true)
+      val bytes = ByteString.copyFrom(ByteArray(100))
+      val checksum = checksum(bytes, 1)
+
+      val context1 = manager.openContext(1L)
+      val context2 = manager.openContext(2L)
+      context1.applyChunk(bytes, 100, 1, checksum)
+      context2.applyChunk(bytes, 100, 1, checksum)
+      manager.totalChunkedByteCount shouldBeEqualTo 200L
+
+      manager.removeChunkedContext(1L)
+      manager.totalChunkedByteCount shouldBeEqualTo 100L
+
+      // A chunk that arrives after its context is removed is not counted
+      context1.applyChunk(bytes, 100, 2, checksum(bytes, 2))
+      manager.totalChunkedByteCount shouldBeEqualTo 100L
+
+      manager.removeChunkedContext(2L)
+      manager.removeChunkedContext(2L)
+      manager.totalChunkedByteCount shouldBeEqualTo 0L
+    }
+  }
+
+  @Test
+  fun streamingOverflowTest() {
+    runBlocking {
+      val bytes = ByteString.copyFrom(ByteArray(100))
+      val context = AgentContextManager(true).newChunkedContext(header(1L), true, 1, 50.milliseconds, this)
+      val contentChannel = context.scrapeResults.contentChannel.shouldNotBeNull()
+
+      // Nothing reads the content, so the second chunk waits for room and then aborts the response
+      context.applyChunk(bytes, 100, 1, checksum(bytes, 1))
+      context.applyChunk(bytes, 100, 2, checksum(bytes, 2))
+      delay(200.milliseconds)
+      contentChannel.receive() shouldBeEqualTo bytes
+      invoking { runBlocking { contentChannel.receive() } } shouldThrow IllegalStateException::class
+    }
+  }
+
+  @Test
+  fun slowStreamingClientTest() {
+    runBlocking {
+      val manager = AgentContextManager(true)
+      val bytes = ByteString.copyFrom(ByteArray(100))
+      val slow = manager.newChunkedContext(header(1L), true, 1, 5.seconds, this)
+      val other = manager.openContext(2L)
+      val slowChannel = slow.scrapeResults.contentChannel.shouldNotBeNull()
+
+      // The slow client has no room for its second chunk, but the other scrape is not held up waiting for it
+      withTimeout(1.seconds) {
+        slow.applyChunk(bytes, 100, 1, checksum(bytes, 1))
+        slow.applyChunk(bytes, 100, 2, checksum(bytes, 2))
+        slow.applySummary(2, 200, checksum(bytes, 2))
+        other.applyChunk(bytes, 100, 1, checksum(bytes, 1))
+        other.applySummary(1, 100, checksum(bytes, 1))
+      }
+      other.scrapeResults.contentAsZipped shouldBeEqualTo bytes
+
+      // The pending chunk is sent once the slow client reads, and then its response ends
+      slowChannel.receive() shouldBeEqualTo bytes
+      slowChannel.receive() shouldBeEqualTo bytes
+      slowChannel.receiveCatching().isClosed.shouldBeTrue()
+    }
+  }
+
+  @Test
+  fun checksumMismatchTest() {
+    runBlocking {
+      val manager = AgentContextManager(true)
+      val bytes = ByteString.copyFrom(ByteArray(100))
+      val corrupt = manager.openContext(1L)
+      val other = manager.openContext(2L)
+
+      // Only the scrape with the bad chunk fails
+      invoking { runBlocking { corrupt.applyChunk(bytes, 100, 1, 0L) } } shouldThrow ChunkValidationException::class
+      other.applyChunk(bytes, 100, 1, checksum(bytes, 1))
+      other.applySummary(1, 100, checksum(bytes, 1))
+      other.scrapeResults.contentAsZipped shouldBeEqualTo bytes
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.agent.ChunkedResponseStreams
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldNotContain
+import org.junit.jupiter.api.Test
+
+class ChunkedResponseStreamsTest {
+
+  @Test
+  fun smallScrapeStreamTest() {
+    val streams = ChunkedResponseStreams(3, 16, 1000)
+    val large = List(4) { streams.assign(true) }
+
+    // Large scrapes are spread over the streams not kept for small scrapes
+    large shouldNotContain 0
+    large.sorted() shouldBeEqualTo listOf(1, 1, 2, 2)
+    streams.assign(false) shouldBeEqualTo 0
+    streams.close()
+  }
+
+  @Test
+  fun releasedStreamTest() {
+    val streams = ChunkedResponseStreams(3, 16, 1000)
+    val first = streams.assign(true)
+    streams.addBytes(first, 5000)
+    val second = streams.assign(true)
+    (second == first) shouldBeEqualTo false
+
+    // A finished scrape no longer counts against its stream
+    streams.release(first, 5000)
+    streams.assign(true) shouldBeEqualTo first
+    streams.close()
+  }
+
+  @Test
+  fun singleStreamTest() {
+    val streams = ChunkedResponseStreams(1, 16, 1000)
+    streams.assign(true) shouldBeEqualTo 0
+    streams.assign(false) shouldBeEqualTo 0
+    streams.close()
+  }
+}
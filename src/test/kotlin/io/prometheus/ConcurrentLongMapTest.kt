@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.proxy.ConcurrentLongMap
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeNull
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+
+class ConcurrentLongMapTest {
+
+  @Test
+  fun putGetRemoveTest() {
+    val map = ConcurrentLongMap<String>()
+    map.put(0L, "zero").shouldBeNull()
+    map[1L] = "one"
+    map.put(1L, "uno") shouldBeEqualTo "one"
+    map[0L] shouldBeEqualTo "zero"
+    map[1L] shouldBeEqualTo "uno"
+    map.size shouldBeEqualTo 2
+    map.remove(0L) shouldBeEqualTo "zero"
+    map.remove(0L).shouldBeNull()
+    map[0L].shouldBeNull()
+    map.size shouldBeEqualTo 1
+    map.values shouldBeEqualTo listOf("uno")
+  }
+
+  @Test
+  fun churnMatchesHashMapTest() {
+    // Small tables force collisions, resizes and backward-shift deletes
+    val map = ConcurrentLongMap<Long>(stripeCount = 2, initialStripeCapacity = 2)
+    val expected = mutableMapOf<Long, Long>()
+    val random = Random(42)
+
+    repeat(50_000) {
+      val key = random.nextLong(2_000)
+      if (random.nextBoolean()) {
+        map.put(key, key * 2) shouldBeEqualTo expected.put(key, key * 2)
+      } else {
+        map.remove(key) shouldBeEqualTo expected.remove(key)
+      }
+    }
+
+    map.size shouldBeEqualTo expected.size
+    expected.forEach { (k, v) -> map[k] shouldBeEqualTo v }
+    map.values.sorted() shouldBeEqualTo expected.values.sorted()
+  }
+}
@@ -20,10 +20,13 @@ package io.prometheus
 
 import io.prometheus.TestConstants.OPTIONS_CONFIG
 import io.prometheus.agent.AgentOptions
+import io.prometheus.agent.HeartbeatMode
 import io.prometheus.proxy.ProxyOptions
+import org.amshove.kluent.invoking
 import org.amshove.kluent.shouldBeEqualTo
 import org.amshove.kluent.shouldBeFalse
 import org.amshove.kluent.shouldBeTrue
+import org.amshove.kluent.shouldThrow
 import org.junit.jupiter.api.Test
 
 class OptionsTest {
@@ -91,6 +94,14 @@ class OptionsTest {
       }
   }
 
+  @Test
+  fun verifyHeartbeatMode() {
+    val configVals = readAgentOptions(listOf("-Dagent.internal.heartbeatMode=Stream"))
+    HeartbeatMode.fromConfig(configVals.agent.internal.heartbeatMode) shouldBeEqualTo HeartbeatMode.STREAM
+    HeartbeatMode.fromConfig(readAgentOptions(listOf()).agent.internal.heartbeatMode) shouldBeEqualTo HeartbeatMode.RPC
+    invoking { HeartbeatMode.fromConfig("strem") } shouldThrow IllegalArgumentException::class
+  }
+
   private fun readProxyOptions(argList: List<String>) = ProxyOptions(argList).configVals
 
   private fun readAgentOptions(argList: List<String>) = AgentOptions(argList, false).configVals
@@ -0,0 +1,207 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.grpc.RegisterAgentRequest
+import io.prometheus.proxy.AgentContext
+import io.prometheus.proxy.AgentContextManager
+import io.prometheus.proxy.ConsolidatedRoutingMode
+import io.prometheus.proxy.ProxyPathManager
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeFalse
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldBeTrue
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.concurrent.thread
+import kotlin.time.Duration.Companion.milliseconds
+
+class ProxyPathManagerTest {
+
+  private fun consolidatedAgent() =
+    AgentContext("test").apply { assignProperties(RegisterAgentRequest.newBuilder().setConsolidated(true).build()) }
+
+  @Test
+  fun addRemoveConsolidatedTest() {
+    val manager = ProxyPathManager(AgentContextManager(true), true)
+    val agent1 = consolidatedAgent()
+    val agent2 = consolidatedAgent()
+
+    manager.addPath("metrics", agent1)
+    val before = manager.getAgentContextInfo("metrics").shouldNotBeNull()
+    manager.addPath("metrics", agent2)
+
+    // Previously returned snapshots are never modified
+    before.agentContexts shouldBeEqualTo listOf(agent1)
+    manager.getAgentContextInfo("metrics")?.agentContexts shouldBeEqualTo listOf(agent1, agent2)
+
+    manager.removePath("metrics", agent1.agentId).valid.shouldBeTrue()
+    manager.getAgentContextInfo("metrics")?.agentContexts shouldBeEqualTo listOf(agent2)
+    manager.removePath("metrics", agent2.agentId).valid.shouldBeTrue()
+    manager.getAgentContextInfo("metrics").shouldBeNull()
+    manager.pathTable.version shouldBeEqualTo 4
+  }
+
+  @Test
+  fun consolidatedRouteTest() {
+    val manager = ProxyPathManager(AgentContextManager(true), true, ConsolidatedRoutingMode.ROUND_ROBIN)
+    val agents = List(3) { consolidatedAgent() }
+
+    manager.addPath("metrics", agents[0])
+    val route = manager.getAgentContextInfo("metrics")?.route.shouldNotBeNull()
+    repeat(20) { route.addLatency((it + 1).milliseconds) }
+    agents.drop(1).forEach { manager.addPath("metrics", it) }
+
+    // The route and its recent latencies are kept as agents join the path
+    val info = manager.getAgentContextInfo("metrics").shouldNotBeNull()
+    (info.route === route).shouldBeTrue()
+    route.latencyPercentile(50) shouldBeEqualTo 11.milliseconds
+
+    // Each scrape goes to the next agent, with the one after it as the hedge
+    List(3) { route.candidates(info.agentContexts) } shouldBeEqualTo
+        listOf(agents, agents.drop(1) + agents.take(1), agents.drop(2) + agents.take(2)).map { it.take(2) }
+  }
+
+  @Test
+  fun pathIdReuseTest() {
+    val agent = AgentContext("test")
+    val id1 = agent.assignPathId("a")
+    val id2 = agent.assignPathId("b")
+    id1 shouldBeEqualTo 1L
+    id2 shouldBeEqualTo 2L
+
+    // A freed slot is reused with a new generation, so the old id no longer matches
+    agent.removePathId("a")
+    val id3 = agent.assignPathId("c")
+    (id3 and 0xFFFF_FFFFL) shouldBeEqualTo 1L
+    (id3 == id1).shouldBeFalse()
+    agent.pathId("a") shouldBeEqualTo 0L
+    agent.pathId("c") shouldBeEqualTo id3
+
+    // Slots are only added when none are free
+    agent.removePathId("b")
+    (agent.assignPathId("d") and 0xFFFF_FFFFL) shouldBeEqualTo 2L
+    (agent.assignPathId("e") and 0xFFFF_FFFFL) shouldBeEqualTo 3L
+  }
+
+  @Test
+  fun removeAgentsTest() {
+    val contextManager = AgentContextManager(true)
+    val manager = ProxyPathManager(contextManager, true)
+    val agents = List(3) { consolidatedAgent().also { contextManager.addAgentContext(it) } }
+
+    agents.forEachIndexed { i, agent ->
+      manager.addPath("shared", agent)
+      manager.addPath("own-$i", agent)
+    }
+    manager.pathMapSize shouldBeEqualTo 4
+
+    manager.removeFromPathManager(agents[0].agentId, "Termination")
+    manager.getAgentContextInfo("own-0").shouldBeNull()
+    manager.getAgentContextInfo("shared")?.agentContexts shouldBeEqualTo agents.drop(1)
+
+    val version = manager.pathTable.version
+    manager.removeFromPathManager(agents.drop(1).map { it.agentId }, "Eviction")
+    manager.pathTable.version shouldBeEqualTo version + 1
+    manager.pathMapSize shouldBeEqualTo 0
+
+    // Removing an agent with no paths leaves the table untouched
+    manager.removeFromPathManager(agents[0].agentId, "Termination")
+    manager.pathTable.version shouldBeEqualTo version + 1
+  }
+
+  @Test
+  fun disconnectLeavesOtherPathsTest() {
+    val contextManager = AgentContextManager(true)
+    val manager = ProxyPathManager(contextManager, true)
+    val agents = List(2) { AgentContext("test").also { contextManager.addAgentContext(it) } }
+    repeat(100) { manager.addPath("path-$it", agents[it % 2]) }
+    val before = manager.pathTable.paths
+
+    manager.removeFromPathManager(agents[0].agentId, "Termination")
+
+    // Only the disconnected agent's paths change, and the other entries are shared with the previous table
+    val after = manager.pathTable.paths
+    after.size shouldBeEqualTo 50
+    after.forEach { (path, info) -> (before[path] === info).shouldBeTrue() }
+    before.size shouldBeEqualTo 100
+  }
+
+  @Test
+  fun concurrentReadersTest() {
+    val manager = ProxyPathManager(AgentContextManager(true), true)
+    val writerCount = 4
+    val readerCount = 4
+    val reps = 2_000
+    val paths = List(8) { "path-$it" }
+    val failure = AtomicReference<Throwable>()
+    val barrier = CyclicBarrier(writerCount + readerCount)
+    val writersDone = CountDownLatch(writerCount)
+
+    val writers =
+      List(writerCount) {
+        thread {
+          barrier.await()
+          try {
+            repeat(reps) { i ->
+              val agent = consolidatedAgent()
+              val path = paths[i % paths.size]
+              manager.addPath(path, agent)
+              manager.removePath(path, agent.agentId).valid.shouldBeTrue()
+            }
+          } catch (e: Throwable) {
+            failure.compareAndSet(null, e)
+          } finally {
+            writersDone.countDown()
+          }
+        }
+      }
+
+    val readers =
+      List(readerCount) {
+        thread {
+          barrier.await()
+          try {
+            var lastVersion = 0L
+            while (writersDone.count > 0) {
+              val table = manager.pathTable
+              (table.version >= lastVersion).shouldBeTrue()
+              lastVersion = table.version
+              table.paths.forEach { (_, info) ->
+                info.consolidated.shouldBeTrue()
+                info.agentContexts.isNotEmpty().shouldBeTrue()
+                info.agentContexts.all { it.consolidated }.shouldBeTrue()
+                info.agentContexts.distinct().size shouldBeEqualTo info.agentContexts.size
+              }
+            }
+          } catch (e: Throwable) {
+            failure.compareAndSet(null, e)
+          }
+        }
+      }
+
+    (writers + readers).forEach { it.join() }
+    failure.get()?.let { throw it }
+    manager.pathMapSize shouldBeEqualTo 0
+    manager.pathTable.version shouldBeEqualTo (2L * writerCount * reps)
+  }
+}
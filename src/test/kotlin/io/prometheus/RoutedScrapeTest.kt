@@ -0,0 +1,254 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.google.protobuf.ByteString
+import io.ktor.http.HttpStatusCode
+import io.prometheus.grpc.RegisterAgentRequest
+import io.prometheus.proxy.AgentContext
+import io.prometheus.proxy.ConsolidatedRoute
+import io.prometheus.proxy.ConsolidatedRoutingMode
+import io.prometheus.proxy.ProxyHttpConfig.routedScrape
+import io.prometheus.proxy.ScrapeRequestResponse
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeGreaterOrEqualTo
+import org.amshove.kluent.shouldBeLessThan
+import org.amshove.kluent.shouldBeTrue
+import org.junit.jupiter.api.Test
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource.Monotonic
+
+class RoutedScrapeTest {
+
+  private val agents =
+    List(2) {
+      AgentContext("test").apply { assignProperties(RegisterAgentRequest.newBuilder().setConsolidated(true).build()) }
+    }
+
+  // The hedge delay is the route's recent latency percentile, which is HEDGE_DELAY once seeded
+  private fun seededRoute() =
+    ConsolidatedRoute(ConsolidatedRoutingMode.ROUND_ROBIN)
+      .apply { repeat(20) { addLatency(HEDGE_DELAY) } }
+
+  private fun response(
+    statusCode: HttpStatusCode = HttpStatusCode.OK,
+    content: String = "",
+    contentChannel: Channel<ByteString>? = null
+  ) =
+    ScrapeRequestResponse(
+      statusCode = statusCode,
+      updateMsg = if (statusCode == HttpStatusCode.OK) "success" else "failure",
+      content = ByteString.copyFromUtf8(content),
+      contentChannel = contentChannel,
+      fetchDuration = 1.milliseconds
+    )
+
+  @Test
+  fun noHedgeBeforeLatenciesTest() {
+    runBlocking {
+      val hedges = mutableListOf<String>()
+      val scraped = mutableListOf<AgentContext>()
+      val route = ConsolidatedRoute(ConsolidatedRoutingMode.ROUND_ROBIN)
+
+      // Without recent latencies there is no hedge delay, so only one agent is scraped
+      val result =
+        routedScrape(route, agents, 95, { hedges += it }) {
+          scraped += it
+          delay(HEDGE_DELAY * 3)
+          response(content = "primary")
+        }
+
+      result.content.toStringUtf8() shouldBeEqualTo "primary"
+      scraped shouldBeEqualTo agents.take(1)
+      hedges shouldBeEqualTo emptyList()
+    }
+  }
+
+  @Test
+  fun noHedgeWithinDelayTest() {
+    runBlocking {
+      val hedges = mutableListOf<String>()
+      val scraped = mutableListOf<AgentContext>()
+
+      val result =
+        routedScrape(seededRoute(), agents, 95, { hedges += it }) {
+          scraped += it
+          response(content = "primary")
+        }
+
+      result.content.toStringUtf8() shouldBeEqualTo "primary"
+      scraped.size shouldBeEqualTo 1
+      hedges shouldBeEqualTo emptyList()
+    }
+  }
+
+  @Test
+  fun hedgingDisabledTest() {
+    runBlocking {
+      val hedges = mutableListOf<String>()
+      val scraped = mutableListOf<AgentContext>()
+
+      routedScrape(seededRoute(), agents, null, { hedges += it }) {
+        scraped += it
+        delay(HEDGE_DELAY * 3)
+        response()
+      }
+
+      scraped.size shouldBeEqualTo 1
+      hedges shouldBeEqualTo emptyList()
+    }
+  }
+
+  @Test
+  fun hedgeWinsTest() {
+    runBlocking {
+      val hedges = mutableListOf<String>()
+      val scraped = mutableListOf<AgentContext>()
+      var primaryCancelled = false
+      val start = Monotonic.markNow()
+
+      val result =
+        routedScrape(seededRoute(), agents, 95, { hedges += it }) { agentContext ->
+          scraped += agentContext
+          if (scraped.size == 1) {
+            try {
+              delay(10.seconds)
+            } catch (e: CancellationException) {
+              primaryCancelled = true
+              throw e
+            }
+            response(content = "primary")
+          } else {
+            response(content = "hedge")
+          }
+        }
+
+      // The hedge is only sent once the primary has taken longer than the hedge delay
+      start.elapsedNow() shouldBeGreaterOrEqualTo HEDGE_DELAY
+      start.elapsedNow() shouldBeLessThan 5.seconds
+      result.content.toStringUtf8() shouldBeEqualTo "hedge"
+      scraped shouldBeEqualTo agents
+      hedges shouldBeEqualTo listOf("sent", "won")
+      primaryCancelled.shouldBeTrue()
+    }
+  }
+
+  @Test
+  fun loserContentChannelTest() {
+    runBlocking {
+      val hedges = mutableListOf<String>()
+      val hedgeStarted = CompletableDeferred<Unit>()
+      val primaryChannel = Channel<ByteString>(1)
+
+      val result =
+        routedScrape(seededRoute(), agents, 95, { hedges += it }) { agentContext ->
+          if (agentContext === agents[0]) {
+            // Completes just after the hedge, so the primary loses after it has already answered
+            hedgeStarted.await()
+            response(content = "primary", contentChannel = primaryChannel)
+          } else {
+            hedgeStarted.complete(Unit)
+            response(content = "hedge")
+          }
+        }
+
+      result.content.toStringUtf8() shouldBeEqualTo "hedge"
+      hedges shouldBeEqualTo listOf("sent", "won")
+      // The loser's streamed content is released, rather than left for its chunks to fill
+      primaryChannel.isClosedForReceive.shouldBeTrue()
+    }
+  }
+
+  @Test
+  fun failedHedgeFallThroughTest() {
+    runBlocking {
+      val hedges = mutableListOf<String>()
+
+      val result =
+        routedScrape(seededRoute(), agents, 95, { hedges += it }) { agentContext ->
+          if (agentContext === agents[0]) {
+            delay(HEDGE_DELAY * 5)
+            response(content = "primary")
+          } else {
+            response(HttpStatusCode.ServiceUnavailable, "hedge")
+          }
+        }
+
+      // The failed hedge answered first, so the primary's answer is waited for
+      result.statusCode shouldBeEqualTo HttpStatusCode.OK
+      result.content.toStringUtf8() shouldBeEqualTo "primary"
+      hedges shouldBeEqualTo listOf("sent")
+    }
+  }
+
+  @Test
+  fun failedPrimaryFallThroughTest() {
+    runBlocking {
+      val hedges = mutableListOf<String>()
+      val primaryFailed = CompletableDeferred<Unit>()
+
+      val result =
+        routedScrape(seededRoute(), agents, 95, { hedges += it }) { agentContext ->
+          if (agentContext === agents[0]) {
+            delay(HEDGE_DELAY * 2)
+            response(HttpStatusCode.ServiceUnavailable, "primary")
+              .also { primaryFailed.complete(Unit) }
+          } else {
+            primaryFailed.await()
+            delay(HEDGE_DELAY)
+            response(content = "hedge")
+          }
+        }
+
+      result.statusCode shouldBeEqualTo HttpStatusCode.OK
+      result.content.toStringUtf8() shouldBeEqualTo "hedge"
+      hedges shouldBeEqualTo listOf("sent", "won")
+    }
+  }
+
+  @Test
+  fun bothFailedTest() {
+    runBlocking {
+      val result =
+        routedScrape(seededRoute(), agents, 95, {}) { agentContext ->
+          if (agentContext === agents[0]) {
+            delay(HEDGE_DELAY * 2)
+            response(HttpStatusCode.ServiceUnavailable, "primary")
+          } else {
+            delay(HEDGE_DELAY * 4)
+            response(HttpStatusCode.NotFound, "hedge")
+          }
+        }
+
+      // The last failure is returned
+      result.statusCode shouldBeEqualTo HttpStatusCode.NotFound
+      result.content.toStringUtf8() shouldBeEqualTo "hedge"
+    }
+  }
+
+  companion object {
+    private val HEDGE_DELAY = 50.milliseconds
+  }
+}
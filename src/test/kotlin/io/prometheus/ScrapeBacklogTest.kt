@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.agent.RequestFailureException
+import io.prometheus.proxy.AgentContext
+import io.prometheus.proxy.ScrapeBacklogFullException
+import io.prometheus.proxy.ScrapeBacklogOverflowPolicy
+import io.prometheus.proxy.ScrapeBacklogOverflowPolicy.DROP_OLDEST
+import io.prometheus.proxy.ScrapeBacklogOverflowPolicy.FAIL
+import io.prometheus.proxy.ScrapeBacklogOverflowPolicy.SUSPEND
+import io.prometheus.proxy.ScrapeRequestWrapper
+import kotlinx.coroutines.async
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import org.amshove.kluent.invoking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeFalse
+import org.amshove.kluent.shouldNotBeNull
+import org.amshove.kluent.shouldThrow
+import org.junit.jupiter.api.Test
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+
+class ScrapeBacklogTest {
+
+  private fun AgentContext.newRequest() = ScrapeRequestWrapper(this, null, "metrics", "", "", null, false)
+
+  @Test
+  fun suspendPolicyTest() {
+    runBlocking {
+      val agent = AgentContext("test", 1, SUSPEND)
+      val first = agent.newRequest()
+      agent.writeScrapeRequest(first, 1.seconds)
+      agent.scrapeRequestBacklogSize shouldBeEqualTo 1
+
+      // Waits for room, and fails once the timeout expires
+      invoking { runBlocking { agent.writeScrapeRequest(agent.newRequest(), 50.milliseconds) } } shouldThrow
+          ScrapeBacklogFullException::class
+      agent.scrapeRequestBacklogSize shouldBeEqualTo 1
+
+      val second = agent.newRequest()
+      val write = async { agent.writeScrapeRequest(second, 5.seconds) }
+      yield()
+      agent.scrapeRequestBacklogSize shouldBeEqualTo 2
+      agent.readScrapeRequest().shouldNotBeNull().scrapeId shouldBeEqualTo first.scrapeId
+      write.await()
+      agent.scrapeRequestBacklogSize shouldBeEqualTo 1
+      agent.readScrapeRequest().shouldNotBeNull().scrapeId shouldBeEqualTo second.scrapeId
+      agent.scrapeRequestBacklogSize shouldBeEqualTo 0
+    }
+  }
+
+  @Test
+  fun failPolicyTest() {
+    runBlocking {
+      val agent = AgentContext("test", 1, FAIL)
+      agent.writeScrapeRequest(agent.newRequest(), 1.seconds)
+
+      // Rejected immediately, rather than after the timeout
+      invoking { runBlocking { agent.writeScrapeRequest(agent.newRequest(), 1.seconds) } } shouldThrow
+          ScrapeBacklogFullException::class
+      agent.scrapeRequestBacklogSize shouldBeEqualTo 1
+    }
+  }
+
+  @Test
+  fun dropOldestPolicyTest() {
+    runBlocking {
+      val agent = AgentContext("test", 2, DROP_OLDEST)
+      val requests = List(3) { agent.newRequest() }
+      requests.forEach { agent.writeScrapeRequest(it, 1.seconds) }
+
+      // The oldest request is failed to make room for the newest
+      agent.scrapeRequestBacklogSize shouldBeEqualTo 2
+      invoking { runBlocking { requests[0].awaitResults(1.seconds) } } shouldThrow ScrapeBacklogFullException::class
+      agent.readScrapeRequest().shouldNotBeNull().scrapeId shouldBeEqualTo requests[1].scrapeId
+      agent.readScrapeRequest().shouldNotBeNull().scrapeId shouldBeEqualTo requests[2].scrapeId
+      agent.scrapeRequestBacklogSize shouldBeEqualTo 0
+    }
+  }
+
+  @Test
+  fun invalidatedBacklogTest() {
+    runBlocking {
+      val agent = AgentContext("test", 4, DROP_OLDEST)
+      repeat(3) { agent.writeScrapeRequest(agent.newRequest(), 1.seconds) }
+      agent.invalidate()
+
+      // A request for a disconnected agent is failed rather than queued
+      val request = agent.newRequest()
+      agent.writeScrapeRequest(request, 1.seconds)
+      invoking { runBlocking { request.awaitResults(1.seconds) } } shouldThrow RequestFailureException::class
+      agent.isValid().shouldBeFalse()
+    }
+  }
+
+  @Test
+  fun overflowPolicyConfigTest() {
+    ScrapeBacklogOverflowPolicy.fromConfig("drop_oldest") shouldBeEqualTo DROP_OLDEST
+    invoking { ScrapeBacklogOverflowPolicy.fromConfig("drop_newest") } shouldThrow IllegalArgumentException::class
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.typesafe.config.ConfigFactory
+import io.prometheus.agent.AgentConnectionContext
+import io.prometheus.common.ConfigVals
+import io.prometheus.common.ScrapeResults
+import io.prometheus.proxy.AgentContext
+import io.prometheus.proxy.ScrapeRequestWrapper
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeFalse
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldBeTrue
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.Test
+import kotlin.time.Duration.Companion.seconds
+
+class ScrapeCancellationTest {
+
+  private fun AgentContext.newRequest() = ScrapeRequestWrapper(this, null, "metrics", "", "", null, false)
+
+  private fun connectionContext(cancels: MutableList<String>) =
+    AgentConnectionContext(
+      ConfigVals(ConfigFactory.empty().withFallback(ConfigFactory.load())).agent.internal,
+      batchedStreams = false,
+      contentAsBytes = false,
+      chunkContentSize = 1024,
+      onScrapeCancelled = { cancels += it }
+    )
+
+  @Test
+  fun queuedCancellationTest() {
+    runBlocking {
+      val agent = AgentContext("test")
+      val request = agent.newRequest()
+      agent.writeScrapeRequest(request, 1.seconds)
+
+      // A queued request is dropped by the proxy, so the agent is not told about it
+      agent.removeScrapeRequest(request).shouldBeFalse()
+      agent.readScrapeRequest().shouldBeNull()
+      agent.scrapeRequestBacklogSize shouldBeEqualTo 0
+    }
+  }
+
+  @Test
+  fun queuedBatchCancellationTest() {
+    runBlocking {
+      val agent = AgentContext("test")
+      val abandoned = agent.newRequest()
+      val kept = agent.newRequest()
+      agent.writeScrapeRequest(abandoned, 1.seconds)
+      agent.writeScrapeRequest(kept, 1.seconds)
+
+      agent.removeScrapeRequest(abandoned).shouldBeFalse()
+      agent.tryReadScrapeRequest().shouldNotBeNull().scrapeId shouldBeEqualTo kept.scrapeId
+      agent.tryReadScrapeRequest().shouldBeNull()
+    }
+  }
+
+  @Test
+  fun sentCancellationTest() {
+    runBlocking {
+      val agent = AgentContext("test")
+      val request = agent.newRequest()
+      agent.writeScrapeRequest(request, 1.seconds)
+      agent.readScrapeRequest().shouldNotBeNull().cancelScrape.shouldBeFalse()
+
+      // The agent already has the request, so it is sent a cancellation
+      agent.removeScrapeRequest(request).shouldBeTrue()
+      val cancellation = agent.readScrapeRequest().shouldNotBeNull()
+      cancellation.cancelScrape.shouldBeTrue()
+      cancellation.scrapeId shouldBeEqualTo request.scrapeId
+    }
+  }
+
+  @Test
+  fun completedCancellationTest() {
+    runBlocking {
+      val agent = AgentContext("test")
+      val request = agent.newRequest()
+      agent.writeScrapeRequest(request, 1.seconds)
+      agent.readScrapeRequest().shouldNotBeNull()
+      request.markComplete(ScrapeResults(agentId = agent.agentId, scrapeId = request.scrapeId))
+
+      // The agent has already answered, so there is nothing to cancel
+      agent.removeScrapeRequest(request).shouldBeFalse()
+      agent.tryReadScrapeRequest().shouldBeNull()
+    }
+  }
+
+  @Test
+  fun cancelBeforeStartTest() {
+    runBlocking {
+      val cancels = mutableListOf<String>()
+      val context = connectionContext(cancels)
+      var started = false
+
+      context.addScrape(1L)
+      context.cancelScrape(1L)
+      context.runScrape(1L) {
+        started = true
+        ScrapeResults(agentId = "agent", scrapeId = 1L)
+      }.shouldBeNull()
+
+      started.shouldBeFalse()
+      cancels shouldBeEqualTo listOf("before_start")
+    }
+  }
+
+  @Test
+  fun cancelInFlightTest() {
+    runBlocking {
+      val cancels = mutableListOf<String>()
+      val context = connectionContext(cancels)
+      val started = CompletableDeferred<Unit>()
+      var jobCancelled = false
+
+      context.addScrape(2L)
+      val results =
+        async {
+          context.runScrape(2L) {
+            started.complete(Unit)
+            try {
+              delay(10.seconds)
+            } catch (e: CancellationException) {
+              jobCancelled = true
+              throw e
+            }
+            ScrapeResults(agentId = "agent", scrapeId = 2L)
+          }
+        }
+      started.await()
+      context.cancelScrape(2L)
+
+      // The scrape's job is cancelled, while the coroutine running it carries on
+      results.await().shouldBeNull()
+      jobCancelled.shouldBeTrue()
+      cancels shouldBeEqualTo listOf("in_flight")
+    }
+  }
+
+  @Test
+  fun completedScrapeTest() {
+    runBlocking {
+      val cancels = mutableListOf<String>()
+      val context = connectionContext(cancels)
+
+      context.addScrape(3L)
+      context.runScrape(3L) { ScrapeResults(agentId = "agent", scrapeId = 3L) }.shouldNotBeNull()
+
+      // A cancellation that arrives after the scrape completed is ignored
+      context.cancelScrape(3L)
+      cancels shouldBeEqualTo emptyList()
+    }
+  }
+
+  @Test
+  fun callerCancelledTest() {
+    runBlocking {
+      val cancels = mutableListOf<String>()
+      val context = connectionContext(cancels)
+      val started = CompletableDeferred<Unit>()
+
+      context.addScrape(4L)
+      val results =
+        async {
+          context.runScrape(4L) {
+            started.complete(Unit)
+            delay(10.seconds)
+            ScrapeResults(agentId = "agent", scrapeId = 4L)
+          }
+        }
+      started.await()
+      results.cancel()
+
+      // Cancelling the caller is not a proxy cancellation, so it is rethrown rather than counted
+      runCatching { results.await() }.exceptionOrNull().shouldNotBeNull()
+      results.isCancelled.shouldBeTrue()
+      cancels shouldBeEqualTo emptyList()
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.ktor.http.HttpStatusCode
+import io.prometheus.proxy.ScrapeRequestCoalescer
+import io.prometheus.proxy.ScrapeRequestCoalescer.ScrapeKey
+import io.prometheus.proxy.ScrapeRequestResponse
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeInstanceOf
+import org.amshove.kluent.shouldBeTrue
+import org.junit.jupiter.api.Test
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+
+class ScrapeRequestCoalescerTest {
+
+  private val key = ScrapeKey("agent", "metrics", "", "", "")
+
+  private fun response(updateMsg: String = "success") =
+    ScrapeRequestResponse(statusCode = HttpStatusCode.OK, updateMsg = updateMsg, fetchDuration = 1.milliseconds)
+
+  @Test
+  fun joinTest() {
+    runBlocking {
+      val counts = mutableListOf<String>()
+      val coalescer = ScrapeRequestCoalescer(1.seconds) { counts += it }
+      val scrapeCount = AtomicInteger(0)
+      val gate = CompletableDeferred<Unit>()
+      val block: suspend () -> ScrapeRequestResponse = {
+        scrapeCount.incrementAndGet()
+        gate.await()
+        response()
+      }
+
+      val originator = async { coalescer.coalesce(key, block) }
+      yield()
+      val joiner = async { coalescer.coalesce(key, block) }
+      yield()
+      gate.complete(Unit)
+
+      // The joiner shares the originator's scrape and its result
+      (originator.await() === joiner.await()).shouldBeTrue()
+      scrapeCount.get() shouldBeEqualTo 1
+      counts shouldBeEqualTo listOf("originating", "coalesced")
+    }
+  }
+
+  @Test
+  fun differentKeyTest() {
+    runBlocking {
+      val counts = mutableListOf<String>()
+      val coalescer = ScrapeRequestCoalescer(1.seconds) { counts += it }
+      val gate = CompletableDeferred<Unit>()
+
+      val first = async { coalescer.coalesce(key) { gate.await().let { response("first") } } }
+      yield()
+      val second = async { coalescer.coalesce(key.copy(path = "other")) { response("second") } }
+      second.await().updateMsg shouldBeEqualTo "second"
+      gate.complete(Unit)
+      first.await().updateMsg shouldBeEqualTo "first"
+      counts shouldBeEqualTo listOf("originating", "originating")
+    }
+  }
+
+  @Test
+  fun joinWindowExpiryTest() {
+    runBlocking {
+      val counts = mutableListOf<String>()
+      val coalescer = ScrapeRequestCoalescer(50.milliseconds) { counts += it }
+      val gate = CompletableDeferred<Unit>()
+
+      val originator = async { coalescer.coalesce(key) { gate.await().let { response("originator") } } }
+      yield()
+      delay(100.milliseconds)
+
+      // The request in flight started too long ago to be joined, so a new scrape is made
+      coalescer.coalesce(key) { response("late") }.updateMsg shouldBeEqualTo "late"
+      gate.complete(Unit)
+      originator.await().updateMsg shouldBeEqualTo "originator"
+      counts shouldBeEqualTo listOf("originating", "originating")
+    }
+  }
+
+  @Test
+  fun originatorFailureTest() {
+    runBlocking {
+      val counts = mutableListOf<String>()
+      val coalescer = ScrapeRequestCoalescer(1.seconds) { counts += it }
+      val gate = CompletableDeferred<Unit>()
+
+      val originator =
+        async {
+          runCatching {
+            coalescer.coalesce(key) {
+              gate.await()
+              throw IllegalStateException("agent failed")
+            }
+          }
+        }
+      yield()
+      val joiner = async { coalescer.coalesce(key) { response("retried") } }
+      yield()
+      gate.complete(Unit)
+
+      // The joiner makes its own scrape, rather than sharing the failure, and is only counted as originating
+      originator.await().exceptionOrNull() shouldBeInstanceOf IllegalStateException::class
+      joiner.await().updateMsg shouldBeEqualTo "retried"
+      counts shouldBeEqualTo listOf("originating", "originating")
+    }
+  }
+
+  @Test
+  fun cancelledOriginatorTest() {
+    runBlocking {
+      val coalescer = ScrapeRequestCoalescer(1.seconds)
+      val originator = async { coalescer.coalesce(key) { delay(10.seconds).let { response("originator") } } }
+      yield()
+      val joiner = async { coalescer.coalesce(key) { response("retried") } }
+      yield()
+      originator.cancel()
+
+      joiner.await().updateMsg shouldBeEqualTo "retried"
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2023 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.common.SizedChannel
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeFalse
+import org.junit.jupiter.api.Test
+
+class SizedChannelTest {
+
+  @Test
+  fun depthTest() {
+    runBlocking {
+      val channel = SizedChannel<Int>(0)
+      repeat(3) { channel.send(it) }
+      channel.trySend(3).isSuccess shouldBeEqualTo true
+      channel.size shouldBeEqualTo 4
+
+      channel.tryReceive().getOrNull() shouldBeEqualTo 0
+      channel.receiveCatching().getOrNull() shouldBeEqualTo 1
+      channel.tryReceive().getOrNull() shouldBeEqualTo 2
+      channel.size shouldBeEqualTo 1
+
+      channel.close()
+      channel.consumeAsFlow().toList() shouldBeEqualTo listOf(3)
+      channel.size shouldBeEqualTo 0
+    }
+  }
+
+  @Test
+  fun fullChannelTest() {
+    runBlocking {
+      val channel = SizedChannel<Int>(1)
+      channel.send(0)
+
+      // A failed trySend is not counted
+      channel.trySend(1).isSuccess.shouldBeFalse()
+      channel.size shouldBeEqualTo 1
+
+      // A suspended sender is counted, as its element is queued once there is room
+      val sender = launch { channel.send(1) }
+      yield()
+      channel.receiveCatching()
+      sender.join()
+      channel.size shouldBeEqualTo 1
+    }
+  }
+
+  @Test
+  fun cancelledChannelTest() {
+    runBlocking {
+      val channel = SizedChannel<Int>(0)
+      repeat(3) { channel.send(it) }
+      channel.cancel()
+
+      // Buffered elements are dropped, so they are no longer reported
+      channel.size shouldBeEqualTo 0
+      channel.trySend(4).isSuccess.shouldBeFalse()
+      channel.size shouldBeEqualTo 0
+    }
+  }
+}